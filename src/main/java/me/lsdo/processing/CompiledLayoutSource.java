@@ -0,0 +1,31 @@
+package me.lsdo.processing;
+
+import java.util.List;
+import me.lsdo.processing.util.*;
+
+// The geometry behind a mesh whose pixel layout can be compiled (see CompiledLayout), usable without
+// building the mesh itself. Meshes that support compiled layouts pass theirs to
+// PixelMesh.init(CompiledLayoutSource); LayoutExport compiles layouts straight from it.
+
+public interface CompiledLayoutSource<T extends LedPixel> {
+
+    // File name of the compiled layout
+    String getCompiledLayoutName();
+
+    // Identifies everything the layout is generated from (layout name, source file versions, ...);
+    // a compiled layout with a different source key is stale
+    String getLayoutSourceKey();
+
+    // Generate the pixels from scratch, in OPC order
+    List<T> getCoords();
+
+    // Which of the mesh's OPC servers manages this pixel
+    int getOpcChannel(T pixel);
+
+    // Recreate pixel i of a compiled layout, including its xy position
+    T pixelFromLayout(CompiledLayout layout, int i);
+
+    // Fill in the CompiledLayout.NUM_IDS native ids identifying 'pixel', starting at ids[offset]
+    void getLayoutIds(T pixel, int[] ids, int offset);
+
+}
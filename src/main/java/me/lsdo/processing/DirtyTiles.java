@@ -0,0 +1,143 @@
+package me.lsdo.processing;
+
+import java.util.*;
+
+// Change detection for a WindowAnimation's window: the window is divided into square tiles, each
+// tile is hashed every frame, and tiles whose hash differs from the previous frame's are marked
+// dirty. Each LED has a list of the tiles its footprint reads from (CSR-style, like
+// WindowResampler: the tiles for the pixel with ordinal i are [ledStart[i], ledStart[i+1]) of
+// ledTiles), so only LEDs touching a dirty tile need to be resampled.
+
+public class DirtyTiles {
+
+    final int tileSize;
+    final int width;
+    final int height;
+    private final int cols;
+    private final int rows;
+
+    private final long[] hashes;
+    private final boolean[] dirty;
+    // hashes hold a previous frame's contents
+    private boolean hashesValid;
+
+    private int[] ledStart;
+    private int[] ledTiles;
+
+    // building state: last LED (ordinal + 1) to claim each tile, so each LED lists a tile only once
+    private int[] tileClaim;
+    private int numLeds;
+    private int numEntries;
+
+    public DirtyTiles(int tileSize, int width, int height, int numLeds) {
+	this.tileSize = tileSize;
+	this.width = width;
+	this.height = height;
+	this.cols = (width + tileSize - 1) / tileSize;
+	this.rows = (height + tileSize - 1) / tileSize;
+	this.hashes = new long[cols * rows];
+	this.dirty = new boolean[cols * rows];
+	this.ledStart = new int[numLeds + 1];
+	this.ledTiles = new int[numLeds];
+	this.tileClaim = new int[cols * rows];
+    }
+
+    public int numTiles() {
+	return cols * rows;
+    }
+
+    // Building: call startLed() for each LED in ordinal order, then addPixels() for every region it
+    // reads, then finish()
+
+    public void startLed(int ordinal) {
+	ledStart[ordinal] = numEntries;
+	numLeds = ordinal + 1;
+    }
+
+    // The current LED reads window pixels [x0, x1] x [y0, y1] (inclusive; clipped to the window)
+    public void addPixels(int x0, int y0, int x1, int y1) {
+	x0 = Math.max(x0, 0);
+	y0 = Math.max(y0, 0);
+	x1 = Math.min(x1, width - 1);
+	y1 = Math.min(y1, height - 1);
+	if (x0 > x1 || y0 > y1) {
+	    return;
+	}
+	for (int ty = y0 / tileSize; ty <= y1 / tileSize; ty++) {
+	    for (int tx = x0 / tileSize; tx <= x1 / tileSize; tx++) {
+		int tile = ty * cols + tx;
+		if (tileClaim[tile] == numLeds) {
+		    continue;
+		}
+		tileClaim[tile] = numLeds;
+		if (numEntries == ledTiles.length) {
+		    ledTiles = Arrays.copyOf(ledTiles, 2 * ledTiles.length + 1);
+		}
+		ledTiles[numEntries++] = tile;
+	    }
+	}
+    }
+
+    public void finish() {
+	ledStart[numLeds] = numEntries;
+	ledTiles = Arrays.copyOf(ledTiles, numEntries);
+	tileClaim = null;
+    }
+
+    // Re-hash every tile of the window's current contents and mark the ones that changed since the
+    // last call (all of them, the first time). Returns whether any tile changed.
+    public boolean update(WindowAnimation window) {
+	int[] pixels = window.getPixels();
+	boolean anyDirty = false;
+	for (int ty = 0; ty < rows; ty++) {
+	    int y0 = ty * tileSize;
+	    int y1 = Math.min(y0 + tileSize, height);
+	    for (int tx = 0; tx < cols; tx++) {
+		int x0 = tx * tileSize;
+		int x1 = Math.min(x0 + tileSize, width);
+		long h = (pixels != null ? hash(pixels, x0, y0, x1, y1) : hash(window, x0, y0, x1, y1));
+		int tile = ty * cols + tx;
+		dirty[tile] = (!hashesValid || h != hashes[tile]);
+		hashes[tile] = h;
+		anyDirty |= dirty[tile];
+	    }
+	}
+	hashesValid = true;
+	return anyDirty;
+    }
+
+    // Set mask[i] for each LED i that reads from a dirty tile
+    public void markLeds(boolean[] mask) {
+	for (int i = 0; i < numLeds; i++) {
+	    boolean d = false;
+	    for (int j = ledStart[i]; j < ledStart[i + 1] && !d; j++) {
+		d = dirty[ledTiles[j]];
+	    }
+	    mask[i] = d;
+	}
+    }
+
+    // FNV-1a over the tile's pixels, a whole pixel at a time
+    private long hash(int[] pixels, int x0, int y0, int x1, int y1) {
+	long h = 0xcbf29ce484222325L;
+	for (int y = y0; y < y1; y++) {
+	    int row = y * width;
+	    for (int x = x0; x < x1; x++) {
+		h = (h ^ pixels[row + x]) * 0x100000001b3L;
+	    }
+	}
+	return h;
+    }
+
+    private long hash(WindowAnimation window, int x0, int y0, int x1, int y1) {
+	long h = 0xcbf29ce484222325L;
+	for (int y = y0; y < y1; y++) {
+	    int row = y * width;
+	    for (int x = x0; x < x1; x++) {
+		h = (h ^ window.getPixel(row + x)) * 0x100000001b3L;
+	    }
+	}
+	return h;
+    }
+
+}
@@ -0,0 +1,62 @@
+package me.lsdo.processing;
+
+// Per-frame state handed to PixelMeshAnimation.drawFrame(): timing, plus a snapshot of the display
+// parameters so they aren't re-read (and unboxed) for every pixel. The animation reuses a single
+// instance from frame to frame (so drawing doesn't allocate), so don't hold on to the object past
+// the frame it was passed for.
+
+public class FrameContext {
+
+    private long frame;
+    private double t;
+    private double deltaT;
+    private double brightness;
+    private double contrast;
+    private double luminance;
+
+    public FrameContext(long frame, double t, double deltaT, double brightness, double contrast, double luminance) {
+	set(frame, t, deltaT, brightness, contrast, luminance);
+    }
+
+    // frame number, counting from 0
+    public long getFrame() {
+	return frame;
+    }
+
+    // time in seconds since start
+    public double getTime() {
+	return t;
+    }
+
+    // time in seconds since last frame
+    public double getDeltaT() {
+	return deltaT;
+    }
+
+    // display parameters, as of the start of the frame
+    public double getBrightness() {
+	return brightness;
+    }
+
+    public double getContrast() {
+	return contrast;
+    }
+
+    public double getLuminance() {
+	return luminance;
+    }
+
+    void set(FrameContext c) {
+	set(c.frame, c.t, c.deltaT, c.brightness, c.contrast, c.luminance);
+    }
+
+    void set(long frame, double t, double deltaT, double brightness, double contrast, double luminance) {
+	this.frame = frame;
+	this.t = t;
+	this.deltaT = deltaT;
+	this.brightness = brightness;
+	this.contrast = contrast;
+	this.luminance = luminance;
+    }
+
+}
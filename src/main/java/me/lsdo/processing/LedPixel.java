@@ -8,6 +8,10 @@ public abstract class LedPixel {
 
     public boolean spacerPixel = false;
 
+    // Dense index of this pixel among its mesh's visible pixels (i.e., its position in coords()),
+    // assigned by PixelMesh.init(); -1 for spacer pixels and pixels not part of a mesh
+    public int ordinal = -1;
+
     public PVector2 toXY() {
 	return spacerPixel ? null : _toXY();
     }
@@ -10,31 +10,107 @@ package me.lsdo.processing;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import me.lsdo.processing.util.*;
 
 public class OPC implements Runnable {
     private Thread thread;
-    private Socket socket;
-    private OutputStream output, pending;
+    // final so the render thread (publish()) always sees it; created before the connect thread can
+    // unpark it
+    private final Thread senderThread;
+    // Connected channel, set once the non-blocking connect completes; written only by the sender thread
+    private volatile SocketChannel output;
+    // Channel with a connect in progress
+    private SocketChannel connecting;
     private String host;
     private int port;
 
-    private byte[] packetData;
+    // Packed frames are handed from the render thread to the sender thread through a lock-free
+    // triple buffer. The render thread owns the 'back' slot and the sender owns the 'front' slot;
+    // the 'middle' slot is exchanged atomically. If the sender falls behind, a newly published
+    // frame simply replaces the unsent one in the middle slot (latest frame wins).
+    // Slots are direct buffers so the channel can write them without an intermediate copy. The
+    // render thread only uses absolute puts, so the sender is free to move position/limit.
+    private ByteBuffer[] packetData;
+    // views of the slots whose position/limit belong to the render thread, for bulk copies
+    private ByteBuffer[] renderViews;
+    private int backSlot = 0;
+    private int frontSlot = 1;
+    // low bits: index of the middle slot; FRESH bit: middle slot holds a frame not yet sent
+    private final AtomicInteger handoff = new AtomicInteger(2);
+    private static final int SLOT_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    // System-exclusive packets waiting to go out ahead of the next frame, in a single gathering write
+    private final Queue<ByteBuffer> pendingConfig = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final int MAX_GATHER = 8;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    // frame counters
+    private volatile long framesSent = 0;
+    // published frames replaced by a newer frame before the sender got to them
+    private volatile long framesOverwritten = 0;
+    // frames the sender picked up but could not deliver (no connection, or write error)
+    private volatile long framesDropped = 0;
+
     private byte firmwareConfig;
     private String colorCorrection;
 
+    // The OPC header has a 16-bit data length, so a single packet can carry at most this many pixels
+    public static final int MAX_PIXELS_PER_PACKET = 0xFFFF / 3;
+
+    // Number of pixels this connection carries; set on the first dispatch
+    private int numPixels;
+    // Buffers with more than 'channelPixels' pixels are split into consecutive packets addressed to
+    // OPC channels firstChannel, firstChannel + 1, ... (channel 0 is broadcast, so it is only used when
+    // everything fits in one packet). All packets share one buffer and go out in a single write.
+    private int channelPixels = MAX_PIXELS_PER_PACKET;
+    private int firstChannel = 1;
+    // Alternatively, pixels beyond the first 'serverPixels' spill over to another connection
+    private OPC overflow;
+    private int serverPixels;
+
+    // Frames identical to the last published frame are not re-sent, except once per keepalive
+    // interval, and always after a (re)connect
+    public static final double DEFAULT_KEEPALIVE = 1.;  // s
+    private long keepaliveNanos = (long)(DEFAULT_KEEPALIVE * 1e9);
+    // slot of the last published frame, or -1
+    private int lastSlot = -1;
+    // The back slot doesn't hold the last published frame yet. Frames are built on top of the last
+    // one, so it's copied in on the first setPixel() of a frame, unless the caller said the whole
+    // frame will be set anyway (see beginFullFrame()).
+    private boolean carryOverPending;
+    private long lastPublishNanos;
+    private volatile boolean resendRequired = true;
+    // frames skipped because nothing changed
+    private volatile long framesSuppressed = 0;
+
     boolean failedAlready = false;
     
     public OPC()
     {
 	this(Config.getConfig().OpcHostname.get(0),
 	     Config.getConfig().OpcPort);
+	setChannelSplit(Config.getConfig().opcChannelPixels, Config.getConfig().opcFirstChannel);
+	setKeepalive(Config.getConfig().opcKeepalive);
     }
 
     public OPC(String host, int port) {
         this.host = host;
         this.port = port;
 	System.out.println("OPC endpoint " + getServer() + "; connecting...");
+        senderThread = new Thread(new Runnable() {
+                public void run() {
+                    sendFrames();
+                }
+            }, "OPC sender " + getServer());
+        senderThread.setDaemon(true);
+        senderThread.start();
         thread = new Thread(this);
         thread.start();
     }
@@ -50,6 +126,56 @@ public class OPC implements Runnable {
     public String getServer() {
 	return host + ":" + port;
     }
+
+    // Split buffers larger than 'maxPixelsPerChannel' across consecutive OPC channels starting at
+    // 'firstChannel'. Must be called before the first dispatch.
+    public void setChannelSplit(int maxPixelsPerChannel, int firstChannel) {
+        if (maxPixelsPerChannel <= 0 || maxPixelsPerChannel > MAX_PIXELS_PER_PACKET) {
+            throw new IllegalArgumentException("pixels per channel must be in [1, " + MAX_PIXELS_PER_PACKET + "]");
+        }
+        if (firstChannel < 0 || firstChannel > 255) {
+            throw new IllegalArgumentException("invalid OPC channel " + firstChannel);
+        }
+        this.channelPixels = maxPixelsPerChannel;
+        this.firstChannel = firstChannel;
+    }
+
+    // Send only the first 'maxPixels' pixels of each dispatched buffer over this connection, and hand
+    // the rest to 'next' (which may in turn overflow to another connection). Must be called before the
+    // first dispatch.
+    public void setOverflow(OPC next, int maxPixels) {
+        if (maxPixels <= 0) {
+            throw new IllegalArgumentException("pixels per server must be positive");
+        }
+        this.overflow = next;
+        this.serverPixels = maxPixels;
+    }
+
+    public OPC getOverflow() {
+        return overflow;
+    }
+
+    // Re-send an unchanged frame at least this often (in seconds). Zero or less disables suppression
+    // of unchanged frames entirely.
+    public void setKeepalive(double seconds) {
+        keepaliveNanos = (long)(seconds * 1e9);
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getFramesOverwritten() {
+        return framesOverwritten;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public long getFramesSuppressed() {
+        return framesSuppressed;
+    }
     
     // Enable or disable dithering. Dithering avoids the "stair-stepping" artifact and increases color
     // resolution by quickly jittering between adjacent 8-bit brightness levels about 400 times a second.
@@ -104,27 +230,26 @@ public class OPC implements Runnable {
 
     // Send a packet with the current firmware configuration settings
     private void sendFirmwareConfigPacket() {
-        if (pending == null) {
+        if (output == null) {
             // We'll do this when we reconnect
             return;
         }
+        queueConfigPacket(firmwareConfigPacket());
+    }
 
-        byte[] packet = new byte[9];
-        packet[0] = 0;          // Channel (reserved)
-        packet[1] = (byte) 0xFF; // Command (System Exclusive)
-        packet[2] = 0;          // Length high byte
-        packet[3] = 5;          // Length low byte
-        packet[4] = 0x00;       // System ID high byte
-        packet[5] = 0x01;       // System ID low byte
-        packet[6] = 0x00;       // Command ID high byte
-        packet[7] = 0x02;       // Command ID low byte
-        packet[8] = firmwareConfig;
-
-        try {
-            pending.write(packet);
-        } catch (Exception e) {
-            dispose(e);
-        }
+    private ByteBuffer firmwareConfigPacket() {
+        ByteBuffer packet = ByteBuffer.allocate(9);
+        packet.put((byte) 0);          // Channel (reserved)
+        packet.put((byte) 0xFF); // Command (System Exclusive)
+        packet.put((byte) 0);          // Length high byte
+        packet.put((byte) 5);          // Length low byte
+        packet.put((byte) 0x00);       // System ID high byte
+        packet.put((byte) 0x01);       // System ID low byte
+        packet.put((byte) 0x00);       // Command ID high byte
+        packet.put((byte) 0x02);       // Command ID low byte
+        packet.put(firmwareConfig);
+        packet.flip();
+        return packet;
     }
 
     // Send a packet with the current color correction settings
@@ -133,29 +258,96 @@ public class OPC implements Runnable {
             // No color correction defined
             return;
         }
-        if (pending == null) {
+        if (output == null) {
             // We'll do this when we reconnect
             return;
         }
+        queueConfigPacket(colorCorrectionPacket());
+    }
 
+    private ByteBuffer colorCorrectionPacket() {
         byte[] content = colorCorrection.getBytes();
         int packetLen = content.length + 4;
-        byte[] header = new byte[8];
-        header[0] = 0;          // Channel (reserved)
-        header[1] = (byte) 0xFF; // Command (System Exclusive)
-        header[2] = (byte) (packetLen >> 8);
-        header[3] = (byte) (packetLen & 0xFF);
-        header[4] = 0x00;       // System ID high byte
-        header[5] = 0x01;       // System ID low byte
-        header[6] = 0x00;       // Command ID high byte
-        header[7] = 0x01;       // Command ID low byte
+        ByteBuffer packet = ByteBuffer.allocate(8 + content.length);
+        packet.put((byte) 0);          // Channel (reserved)
+        packet.put((byte) 0xFF); // Command (System Exclusive)
+        packet.put((byte) (packetLen >> 8));
+        packet.put((byte) (packetLen & 0xFF));
+        packet.put((byte) 0x00);       // System ID high byte
+        packet.put((byte) 0x01);       // System ID low byte
+        packet.put((byte) 0x00);       // Command ID high byte
+        packet.put((byte) 0x01);       // Command ID low byte
+        packet.put(content);
+        packet.flip();
+        return packet;
+    }
 
-        try {
-            pending.write(header);
-            pending.write(content);
-        } catch (Exception e) {
-            dispose(e);
+    // Config packets are written by the sender thread, ahead of the next frame
+    private void queueConfigPacket(ByteBuffer packet) {
+        pendingConfig.add(packet);
+        LockSupport.unpark(senderThread);
+    }
+
+    // Set the number of pixels carried by this connection (and any overflow connections) and
+    // allocate the packet buffers. Call once before setPixel(); dispatch() does this automatically.
+    public void setPixelCount(int totalPixels) {
+        initPacketData(totalPixels);
+        if (overflow != null) {
+            overflow.setPixelCount(Math.max(totalPixels - numPixels, 0));
+        }
+    }
+
+    public int getPixelCount() {
+        return numPixels + (overflow != null ? overflow.getPixelCount() : 0);
+    }
+
+    // The connection that carries pixel 'i' (this one, or one of its overflow connections)
+    OPC connectionFor(int i) {
+        OPC opc = this;
+        while (i >= opc.numPixels && opc.overflow != null) {
+            i -= opc.numPixels;
+            opc = opc.overflow;
         }
+        return opc;
+    }
+
+    // Byte offset of pixel 'i' within the packet buffer of connectionFor(i)
+    int pixelOffset(int i) {
+        OPC opc = this;
+        while (i >= opc.numPixels && opc.overflow != null) {
+            i -= opc.numPixels;
+            opc = opc.overflow;
+        }
+        return 3 * i + 4 * (i / opc.channelPixels + 1);
+    }
+
+    // Set pixel 'i' of the frame being built
+    public void setPixel(int i, int color) {
+        OPC opc = connectionFor(i);
+        if (opc.packetData != null) {
+            opc.putPixel(pixelOffset(i), color);
+        }
+    }
+
+    public int getPixel(int i) {
+        OPC opc = connectionFor(i);
+        return opc.packetData != null ? opc.readPixel(pixelOffset(i)) : 0;
+    }
+
+    // Write a color straight into the frame being built, at a byte offset from pixelOffset()
+    void putPixel(int offset, int color) {
+        if (carryOverPending) {
+            carryOver();
+        }
+        ByteBuffer packet = packetData[backSlot];
+        packet.put(offset, (byte) (color >> 16));
+        packet.put(offset + 1, (byte) (color >> 8));
+        packet.put(offset + 2, (byte) color);
+    }
+
+    int readPixel(int offset) {
+        ByteBuffer packet = packetData[carryOverPending ? lastSlot : backSlot];
+        return OpcColor.getRgbColor(packet.get(offset) & 0xFF, packet.get(offset + 1) & 0xFF, packet.get(offset + 2) & 0xFF);
     }
 
     // Automatically called at the end of each draw().
@@ -163,49 +355,205 @@ public class OPC implements Runnable {
     // If you aren't using that mapping, this function has no effect.
     // In that case, you can call setPixelCount(), setPixel(), and writePixels()
     // separately.
+    // Only packs the frame and hands it off to the sender thread; never blocks on the network.
     public void dispatch(int[] buffer) {
-        int numPixels = buffer.length;
 	if (packetData == null) {
-	    initPacketData(numPixels);
+	    setPixelCount(buffer.length);
 	}
-	
-        int offset = 4;
-        for (int i = 0; i < numPixels; i++) {
-            int pixel = buffer[i];
-            packetData[offset] = (byte) (pixel >> 16);
-            packetData[offset + 1] = (byte) (pixel >> 8);
-            packetData[offset + 2] = (byte) pixel;
-            offset += 3;
+        OPC opc = this;
+        int start = 0;
+        while (opc != null && start < buffer.length) {
+            opc.pack(buffer, start);
+            start += opc.numPixels;
+            opc = opc.overflow;
         }
-
         writePixels();
     }
 
-    void initPacketData(int numPixels) {
-	int ledBytes = 3 * numPixels;
-	packetData = new byte[4 + ledBytes];
-	packetData[0] = 0;  // Channel
-	packetData[1] = 0;  // Command (Set pixel colors)
-	packetData[2] = (byte) (ledBytes >> 8);
-	packetData[3] = (byte) (ledBytes & 0xFF);
+    // Pack buffer[start:], or as much of it as this connection carries
+    private void pack(int[] buffer, int start) {
+        carryOverPending = false;
+        ByteBuffer packet = packetData[backSlot];
+        int offset = 0;
+        int i = 0;
+        while (i < numPixels) {
+            int end = Math.min(i + channelPixels, numPixels);
+            offset += 4;
+            for (; i < end; i++) {
+                int pixel = buffer[start + i];
+                packet.put(offset, (byte) (pixel >> 16));
+                packet.put(offset + 1, (byte) (pixel >> 8));
+                packet.put(offset + 2, (byte) pixel);
+                offset += 3;
+            }
+        }
+    }
+
+    void initPacketData(int totalPixels) {
+        numPixels = (overflow != null ? Math.min(totalPixels, serverPixels) : totalPixels);
+        int numPackets = (numPixels + channelPixels - 1) / channelPixels;
+        if (numPackets > 1 && firstChannel + numPackets - 1 > 255) {
+            throw new IllegalStateException(String.format("%d pixels need %d OPC channels starting from %d; only 255 available",
+                                                          numPixels, numPackets, firstChannel));
+        }
+
+	packetData = new ByteBuffer[3];
+	renderViews = new ByteBuffer[3];
+	for (int i = 0; i < packetData.length; i++) {
+	    ByteBuffer packet = ByteBuffer.allocateDirect(4 * numPackets + 3 * numPixels);
+            int offset = 0;
+            for (int k = 0; k < numPackets; k++) {
+                int ledBytes = 3 * Math.min(channelPixels, numPixels - k * channelPixels);
+                packet.put(offset, (byte) (numPackets > 1 ? firstChannel + k : 0));  // Channel
+                packet.put(offset + 1, (byte) 0);  // Command (Set pixel colors)
+                packet.put(offset + 2, (byte) (ledBytes >> 8));
+                packet.put(offset + 3, (byte) (ledBytes & 0xFF));
+                offset += 4 + ledBytes;
+            }
+	    packetData[i] = packet;
+	    renderViews[i] = packet.duplicate();
+	}
+	lastSlot = -1;
+	carryOverPending = false;
+    }
+
+    // The caller is about to set every pixel of the next frame (of this connection and its overflow
+    // connections), so it needn't start from a copy of the last one
+    void beginFullFrame() {
+        carryOverPending = false;
+        if (overflow != null) {
+            overflow.beginFullFrame();
+        }
+    }
+
+    // Start the frame being built from a copy of the last one published
+    private void carryOver() {
+        ByteBuffer next = renderViews[backSlot];
+        ByteBuffer last = renderViews[lastSlot];
+        next.clear();
+        last.clear();
+        next.put(last);
+        carryOverPending = false;
     }
     
-    // Transmit our current buffer of pixel values to the OPC server. This is handled
-    // automatically in draw() if any pixels are mapped to the screen, but if you haven't
-    // mapped any pixels to the screen you'll want to call this directly.
-    void writePixels() {
-        if (packetData == null || packetData.length == 0) {
-            // No pixel buffer
-            return;
+    // Whether the frame being built differs from the last one published
+    private boolean frameChanged() {
+        if (lastSlot < 0 || resendRequired) {
+            return true;
         }
-        if (output == null) {
-            return;
+        // absolute reads only: the sender thread may be moving the last frame's position
+        ByteBuffer packet = packetData[backSlot];
+        ByteBuffer last = packetData[lastSlot];
+        int len = packet.capacity();
+        int i = 0;
+        for (; i + 4 <= len; i += 4) {
+            if (packet.getInt(i) != last.getInt(i)) {
+                return true;
+            }
+        }
+        for (; i < len; i++) {
+            if (packet.get(i) != last.get(i)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        try {
-            output.write(packetData);
-        } catch (Exception e) {
-            dispose(e);
+    private boolean keepaliveDue() {
+        return keepaliveNanos <= 0 || System.nanoTime() - lastPublishNanos >= keepaliveNanos;
+    }
+
+    // Finish the frame being built: hand it to the sender thread, which transmits it to the OPC
+    // server, unless it is unchanged since the last frame sent. Then do the same for any overflow
+    // connections. This is handled automatically by dispatch(). Safe to call only from the thread
+    // that builds the frames.
+    public void writePixels() {
+        if (packetData != null && packetData[backSlot].capacity() > 0) {
+            // nothing set since the last frame was published means it's that frame again
+            boolean changed = (carryOverPending ? resendRequired : frameChanged());
+            if (changed || keepaliveDue()) {
+                if (carryOverPending) {
+                    carryOver();
+                }
+                publish();
+            } else {
+                framesSuppressed++;
+            }
+        }
+        if (overflow != null) {
+            overflow.writePixels();
+        }
+    }
+
+    private void publish() {
+        lastSlot = backSlot;
+        lastPublishNanos = System.nanoTime();
+        resendRequired = false;
+        int prev = handoff.getAndSet(backSlot | FRESH);
+        backSlot = prev & SLOT_MASK;
+        if ((prev & FRESH) != 0) {
+            framesOverwritten++;
+        }
+        LockSupport.unpark(senderThread);
+        // pixels not set again keep their color
+        carryOverPending = true;
+    }
+
+    // Sender thread: wait for a fresh frame or config packets, take ownership of them, and write
+    // them out in one gathering write. Frames published while a write is in progress collapse into
+    // the newest one.
+    private void sendFrames() {
+        for (; ; ) {
+            boolean fresh = (handoff.get() & FRESH) != 0;
+            if (!fresh && pendingConfig.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            int n = 0;
+            ByteBuffer config;
+            while (n < MAX_GATHER - 1 && (config = pendingConfig.poll()) != null) {
+                gather[n++] = config;
+            }
+            if (fresh) {
+                int prev = handoff.getAndSet(frontSlot);
+                frontSlot = prev & SLOT_MASK;
+                ByteBuffer frame = packetData[frontSlot];
+                frame.clear();
+                gather[n++] = frame;
+            }
+
+            SocketChannel out = output;
+            if (out == null) {
+                if (fresh) {
+                    framesDropped++;
+                }
+            } else {
+                try {
+                    writeFully(out, gather, n);
+                    if (fresh) {
+                        framesSent++;
+                    }
+                } catch (IOException e) {
+                    if (fresh) {
+                        framesDropped++;
+                    }
+                    dispose(e);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                gather[i] = null;
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel out, ByteBuffer[] buffers, int n) throws IOException {
+        int first = 0;
+        while (first < n) {
+            out.write(buffers, first, n - first);
+            while (first < n && !buffers[first].hasRemaining()) {
+                first++;
+            }
         }
     }
 
@@ -219,41 +567,65 @@ public class OPC implements Runnable {
 	
         // Destroy the socket. Called internally when we've disconnected.
         // (Thread continues to run)
-        if (output != null) {
+        SocketChannel channel = output;
+        if (channel != null) {
             System.out.println("Disconnected from OPC " + getServer());
+            close(channel);
         }
-        socket = null;
-        output = pending = null;
+        output = null;
 	failedAlready = true;
     }
 
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
     public void run() {
         // Thread tests server connection periodically, attempts reconnection.
         // Important for OPC arrays; faster startup, client continues
         // to run smoothly when mobile servers go in and out of range.
+        // Connects are non-blocking; an in-progress connect is polled until it completes.
         for (; ; ) {
 
             if (output == null) { // No OPC connection?
                 try {              // Make one!
-                    socket = new Socket(host, port);
-                    socket.setTcpNoDelay(true);
-                    pending = socket.getOutputStream(); // Avoid race condition...
-                    System.out.println("OPC " + getServer() + " connected");
-		    failedAlready = false;
-                    sendColorCorrectionPacket();        // These write to 'pending'
-                    sendFirmwareConfigPacket();         // rather than 'output' before
-                    output = pending;                   // rest of code given access.
-                    // pending not set null, more config packets are OK!
-                } catch (ConnectException e) {
-                    dispose(e);
+                    if (connecting == null) {
+                        connecting = SocketChannel.open();
+                        connecting.configureBlocking(false);
+                        connecting.socket().setTcpNoDelay(true);
+                        connecting.connect(new InetSocketAddress(host, port));
+                    }
+                    if (connecting.finishConnect()) {
+                        SocketChannel channel = connecting;
+                        connecting = null;
+                        // the sender thread has this channel to itself, so let its writes block
+                        channel.configureBlocking(true);
+                        System.out.println("OPC " + getServer() + " connected");
+                        failedAlready = false;
+                        pendingConfig.clear();
+                        if (colorCorrection != null) {
+                            pendingConfig.add(colorCorrectionPacket());
+                        }
+                        pendingConfig.add(firmwareConfigPacket());
+                        output = channel;
+                        resendRequired = true;
+                        LockSupport.unpark(senderThread);
+                    }
                 } catch (IOException e) {
+                    if (connecting != null) {
+                        close(connecting);
+                        connecting = null;
+                    }
                     dispose(e);
                 }
             }
 
-            // Pause thread to avoid massive CPU load
+            // Pause thread to avoid massive CPU load; poll more often while a connect is in flight
             try {
-                thread.sleep(500);
+                Thread.sleep(connecting != null ? 20 : 500);
             } catch (InterruptedException e) {
             }
         }
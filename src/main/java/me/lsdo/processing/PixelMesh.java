@@ -1,6 +1,7 @@
 
 package me.lsdo.processing;
 
+import java.io.*;
 import java.util.*;
 import me.lsdo.processing.util.*;
 import me.lsdo.processing.interactivity.*;
@@ -13,18 +14,35 @@ import me.lsdo.processing.interactivity.*;
 public abstract class PixelMesh<T extends LedPixel> {
 
     public List<OPC> opcs;
-    private int[][] opcBuffers;
 
     // All pixels, in the order seen by the fadecandies (including spacer pixels).
     private ArrayList<T> _coords;
     // Just visible pixels (spacer pixels filtered out)
     private ArrayList<T> visibleCoords;
-    // Mapping of pixels to current color (just visible pixels)
-    private HashMap<LedPixel, Integer> colors;
+    // Current color of each visible pixel, by ordinal
+    private int[] colors;
+    // xy position of each visible pixel, by ordinal
+    private float[] pixelXs;
+    private float[] pixelYs;
+    // Ordinal lookup for pixel objects that are equal to, but not the same instance as, our pixels;
+    // built on demand
+    private HashMap<LedPixel, Integer> ordinalsByValue;
+    // For each visible pixel, the OPC connection that carries it and the byte offset of its color within
+    // that connection's packet buffer. Colors are written straight into the packets. Null for pixels
+    // of a null OPC (meshes built without connections, e.g. for layout export or offline rendering).
+    private OPC[] pixelOpc;
+    private int[] pixelOffset;
     // For consumers to iterate over just real pixels (not spacer pixels)
     public List<T> coords() {
 	return visibleCoords;
     }
+    // xy positions of the visible pixels, by ordinal, for bulk transforms (don't modify)
+    public float[] getPixelXs() {
+	return pixelXs;
+    }
+    public float[] getPixelYs() {
+	return pixelYs;
+    }
     // Return all pixels (including spacer pixels) for diagnostic sketches (DON'T NORMALLY USE THIS)
     public List<T> _allPixels() {
 	return _coords;
@@ -109,6 +127,15 @@ public abstract class PixelMesh<T extends LedPixel> {
 	public PVector2 transform(PVector2 p) {
 	    return LayoutUtil.Vadd(LayoutUtil.Vmult(LayoutUtil.Vrot(p, rot.getInternal()), scale.get()), LayoutUtil.V(xo.get(), yo.get()));
 	}
+
+	public boolean concatAffine(LedPixel px, Affine m) {
+	    m.rotate(rot.getInternal()).scale(scale.get(), scale.get()).translate(xo.get(), yo.get());
+	    return true;
+	}
+
+	public boolean isPixelIndependent() {
+	    return true;
+	}
     }
     public PlacementTransform placement;
 
@@ -116,23 +143,72 @@ public abstract class PixelMesh<T extends LedPixel> {
 	opcs = new ArrayList<OPC>();
 	_coords = new ArrayList<T>();
 	visibleCoords = new ArrayList<T>();
-	colors = new HashMap<LedPixel, Integer>();
     }
 
-    // child implementations must call this at the end of their constructor
+    // child implementations must call this (or init(CompiledLayoutSource)) at the end of their constructor
     public void init() {
-	_coords.addAll(getCoords());
+	initCoords(getCoords());
+    }
+
+    // As init(), for meshes whose layout can be compiled: if the config has a 'layout_cache'
+    // directory, the pixels are loaded from the source's compiled layout there (when it's up to
+    // date) rather than generated by getCoords(). LayoutExport compiles them.
+    protected void init(CompiledLayoutSource<T> source) {
+	List<T> compiled = loadCompiledLayout(source);
+	initCoords(compiled != null ? compiled : getCoords());
+    }
+
+    private void initCoords(List<T> coords) {
+	_coords.addAll(coords);
         for (T c : _coords) {
-            setColor(c, 0);
 	    if (!c.spacerPixel) {
+		c.ordinal = visibleCoords.size();
 		visibleCoords.add(c);
 	    }
 	}
-	initOpcBuffers();
+	colors = new int[visibleCoords.size()];
+	pixelXs = new float[visibleCoords.size()];
+	pixelYs = new float[visibleCoords.size()];
+	for (T c : visibleCoords) {
+	    PVector2 xy = c.toXY();
+	    pixelXs[c.ordinal] = xy.x;
+	    pixelYs[c.ordinal] = xy.y;
+	}
+	initOpcMapping();
     }
 
     protected abstract List<T> getCoords();
 
+    private List<T> loadCompiledLayout(CompiledLayoutSource<T> source) {
+	String dir = Config.getConfig().layoutCacheDir;
+	if (dir == null) {
+	    return null;
+	}
+	File file = new File(dir, source.getCompiledLayoutName());
+	CompiledLayout layout;
+	try {
+	    layout = CompiledLayout.load(file, source.getLayoutSourceKey());
+	} catch (IOException e) {
+	    System.err.println("can't read compiled layout " + file + ": " + e.getMessage());
+	    return null;
+	}
+	if (layout == null) {
+	    System.out.println(String.format("compiled layout %s missing or out of date; generating layout", file));
+	    return null;
+	}
+
+	List<T> pixels = new ArrayList<T>(layout.size());
+	for (int i = 0; i < layout.size(); i++) {
+	    T px = source.pixelFromLayout(layout, i);
+	    if (layout.channel(i) != getOpcChannel(px) || getOpcChannel(px) >= opcs.size()) {
+		System.out.println(String.format("compiled layout %s doesn't match this mesh; generating layout", file));
+		return null;
+	    }
+	    pixels.add(px);
+	}
+	return pixels;
+    }
+
     public PixelTransform transform() {
 	if (_transform == null) {
 	    placement = new PlacementTransform();
@@ -171,14 +247,47 @@ public abstract class PixelMesh<T extends LedPixel> {
     }
 
     public Integer getColor(LedPixel dCoord){
-	return dCoord.spacerPixel ? 0 : colors.get(dCoord);
+	return dCoord.spacerPixel ? 0 : colors[ordinalOf(dCoord)];
     }
 
     public void setColor(LedPixel dCoord, Integer color){
 	if (dCoord.spacerPixel) {
 	    return;
 	}
-	colors.put(dCoord, color);
+	setColor(ordinalOf(dCoord), color);
+    }
+
+    // Color of the visible pixel with the given ordinal (index into coords())
+    public int getColor(int ordinal) {
+	return colors[ordinal];
+    }
+
+    // Set the color of the visible pixel with the given ordinal (index into coords()). The color is
+    // also written straight into the pixel's OPC packet.
+    public void setColor(int ordinal, int color) {
+	colors[ordinal] = color;
+	OPC opc = pixelOpc[ordinal];
+	if (opc != null) {
+	    opc.putPixel(pixelOffset[ordinal], color);
+	}
+    }
+
+    int ordinalOf(LedPixel px) {
+	int ordinal = px.ordinal;
+	if (ordinal >= 0 && ordinal < visibleCoords.size() && visibleCoords.get(ordinal) == px) {
+	    return ordinal;
+	}
+	if (ordinalsByValue == null) {
+	    ordinalsByValue = new HashMap<LedPixel, Integer>();
+	    for (T c : visibleCoords) {
+		ordinalsByValue.put(c, c.ordinal);
+	    }
+	}
+	Integer byValue = ordinalsByValue.get(px);
+	if (byValue == null) {
+	    throw new IllegalArgumentException("pixel " + px + " is not part of this mesh");
+	}
+	return byValue;
     }
 
     public int getNumPoints(){
@@ -192,12 +301,14 @@ public abstract class PixelMesh<T extends LedPixel> {
         double xmax = Double.NEGATIVE_INFINITY;
         double ymin = Double.POSITIVE_INFINITY;
         double ymax = Double.NEGATIVE_INFINITY;
-        for (LedPixel c : coords()) {
-	    PVector2 p = transform().transform(c);
-            xmin = Math.min(xmin, p.x);
-            xmax = Math.max(xmax, p.x);
-            ymin = Math.min(ymin, p.y);
-            ymax = Math.max(ymax, p.y);
+        float[] xs = getPixelXs().clone();
+        float[] ys = getPixelYs().clone();
+        transform().transform(coords(), null, xs, ys, xs, ys);
+        for (int i = 0; i < xs.length; i++) {
+            xmin = Math.min(xmin, xs[i]);
+            xmax = Math.max(xmax, xs[i]);
+            ymin = Math.min(ymin, ys[i]);
+            ymax = Math.max(ymax, ys[i]);
         }
 	PVector2 margin = LayoutUtil.Vmult(transform().getMargins(coords().get(0)), getPixelBufferRadius());
         xmin -= margin.x;
@@ -234,6 +345,19 @@ public abstract class PixelMesh<T extends LedPixel> {
 						    reproject(p.y, p0.y, pDim.y, 1., yscale)),
 				       LayoutUtil.V(xo, yo));
 	    }
+
+	    public boolean concatAffine(LedPixel px, Affine m) {
+		double xextent = (double)width/height;
+		double yextent = 1.;
+		m.translate(-p0.x, -p0.y)
+		    .scale(2 * xextent / pDim.x / xscale, 2 * yextent / pDim.y / yscale)
+		    .translate(-xextent / xscale + xo, -yextent / yscale + yo);
+		return true;
+	    }
+
+	    public boolean isPixelIndependent() {
+		return true;
+	    }
 	};
     }
 
@@ -242,27 +366,50 @@ public abstract class PixelMesh<T extends LedPixel> {
     // This should be roughly one-half of the average spacing between pixels
     public abstract double getPixelBufferRadius();
 
-    private void initOpcBuffers() {
+    // Size each OPC connection's packets, and resolve every visible pixel to its connection and
+    // byte offset. Spacer pixels keep their slot in the packet but are never written (stay black).
+    private void initOpcMapping() {
 	int[] pixelCounts = new int[opcs.size()];
 	for (T c : _coords) {
 	    pixelCounts[getOpcChannel(c)] += 1;
 	}
-	opcBuffers = new int[opcs.size()][];
 	for (int i = 0; i < opcs.size(); i++) {
-	    opcBuffers[i] = new int[pixelCounts[i]];
+	    if (opcs.get(i) != null) {
+		opcs.get(i).setPixelCount(pixelCounts[i]);
+	    }
 	}
-    }
 
-    public void dispatch() {
-	int[] pixelCounts = new int[opcs.size()];
+	pixelOpc = new OPC[visibleCoords.size()];
+	pixelOffset = new int[visibleCoords.size()];
+	pixelCounts = new int[opcs.size()];
 	for (T c : _coords) {
 	    int channel = getOpcChannel(c);
 	    int i = pixelCounts[channel];
-            opcBuffers[channel][i] = getColor(c);
 	    pixelCounts[channel] += 1;
+	    OPC opc = opcs.get(channel);
+	    if (c.spacerPixel || opc == null) {
+		continue;
+	    }
+	    pixelOpc[c.ordinal] = opc.connectionFor(i);
+	    pixelOffset[c.ordinal] = opc.pixelOffset(i);
+	}
+    }
+
+    // Every visible pixel is about to be set for the next frame, so the OPCs can skip carrying the
+    // last frame's colors over
+    void beginFullFrame() {
+	for (int i = 0; i < opcs.size(); i++) {
+	    if (opcs.get(i) != null) {
+		opcs.get(i).beginFullFrame();
+	    }
 	}
+    }
+
+    public void dispatch() {
 	for (int i = 0; i < opcs.size(); i++) {
-	    opcs.get(i).dispatch(opcBuffers[i]);
+	    if (opcs.get(i) != null) {
+		opcs.get(i).writePixels();
+	    }
 	}
     }
 
@@ -1,6 +1,7 @@
 package me.lsdo.processing;
 
 import java.util.*;
+import java.util.concurrent.*;
 import me.lsdo.processing.geometry.prometheus.*;
 import me.lsdo.processing.interactivity.*;
 import me.lsdo.processing.util.*;
@@ -12,18 +13,44 @@ import me.lsdo.processing.util.*;
 public abstract class PixelMeshAnimation<T extends LedPixel> {
 
     public static final double FRAMERATE_SMOOTHING_FACTOR = .9;  // [0, 1) -- higher == smoother
+    public static final int DEFAULT_RENDER_CHUNK_SIZE = 64;  // pixels
 
     public PixelMesh<? extends T> mesh;
 
     private boolean initialized = false;
     private double lastT = 0;
+    private long frameCount = 0;
+    // reused every frame
+    private final FrameContext ctx = new FrameContext(0, 0, 0, 0, 0, 0);
+    // raw (pre-post-processing) colors of the current frame, by pixel ordinal
+    private int[] frame;
+
+    // Display post-processing (brightness/contrast, luminance, optional software color correction),
+    // folded into a lookup table that is only rebuilt when its inputs change
+    private ColorLut displayLut = new ColorLut();
+    private boolean displayLutStale = true;
+    private double lutBrightness, lutContrast, lutLuminance;
+    // software color correction; gamma <= 0 means none
+    private double gamma = 0;
+    private double[] whitepoint;
     public double frameRate = 0.;  // fps
+    // frame scheduler when driven by run(); exposes jitter statistics
+    public FramePacer pacer;
 
     public InputControl ctrl;
     public NumericParameter globalBrightness;
     public NumericParameter brightness;
     public NumericParameter contrast;
 
+    // Opt-in parallel rendering: when renderThreads > 1, the pixels are split into chunks of
+    // renderChunkSize and drawn concurrently on a fork/join pool. See drawPixel() for the
+    // thread-safety requirements this places on subclasses.
+    private int renderThreads;
+    private int renderChunkSize;
+    private ForkJoinPool renderPool;
+    // if set, the default drawFrame() only redraws pixels whose entry is true
+    private boolean[] redrawMask;
+
     public PixelMeshAnimation(PixelMesh<? extends T> mesh) {
         this.mesh = mesh;
 
@@ -45,9 +72,33 @@ public abstract class PixelMeshAnimation<T extends LedPixel> {
         brightness.min = 0.;
         brightness.max = 1.;
         brightness.init(Config.getSketchProperty("brightness", .5));
+
+        setParallelRendering(Config.getSketchProperty("render_threads", 1),
+                             Config.getSketchProperty("render_chunk_size", DEFAULT_RENDER_CHUNK_SIZE));
+    }
+
+    // Render with 'threads' threads (1 to render serially on the calling thread), handing out
+    // 'chunkSize' pixels at a time
+    public void setParallelRendering(int threads, int chunkSize) {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("thread count and chunk size must be positive");
+        }
+        if (renderPool != null && threads != renderThreads) {
+            renderPool.shutdown();
+            renderPool = null;
+        }
+        renderThreads = threads;
+        renderChunkSize = chunkSize;
     }
 
     public void draw(double t) {
+        renderFrame(prepareFrame(t));
+    }
+
+    // First half of draw(): one-time initialization, input handling (and so parameter callbacks)
+    // and transform updates. Returns the frame's context (the same object every frame). Pipelined
+    // animations run this on the sketch thread and renderFrame() on a worker.
+    FrameContext prepareFrame(double t) {
 	if (!initialized) {
 	    init();
 	    ctrl.finalizeParams();
@@ -58,19 +109,129 @@ public abstract class PixelMeshAnimation<T extends LedPixel> {
 	lastT = t;
 	updateFramerate(deltaT);
 
-	ctrl.processInput();
+	handleInput();
 	mesh.beforeDraw(this);
 
-        preFrame(t, deltaT);
-        for (T c : mesh.coords()){
-            mesh.setColor(c, OpcColor.scaleBrightness(OpcColor.brightnessContrast(drawPixel(c, t), brightness.get(), contrast.get()), globalBrightness.get()));
+        ctx.set(frameCount++, t, deltaT, brightness.get(), contrast.get(), globalBrightness.get());
+        return ctx;
+    }
+
+    // Apply pending input events (and so parameter callbacks)
+    void handleInput() {
+	ctrl.processInput();
+    }
+
+    // Second half of draw(): render the frame described by 'ctx', post-process and dispatch it
+    void renderFrame(FrameContext ctx) {
+        if (frame == null) {
+            frame = new int[mesh.getNumPoints()];
         }
-        postFrame(t);
-	// TODO: frame post-processing (global contrast adjustment, etc.?)
+
+        preFrame(ctx.getTime(), ctx.getDeltaT());
+        drawFrame(frame, ctx);
+        postProcess(ctx);
+        postFrame(ctx.getTime());
 	mesh.dispatch();
     }
 
+    // Apply gamma and white point correction in software, for OPC servers that don't do it
+    // themselves (Fadecandy servers should use OPC.setColorCorrection() instead). A gamma of 0
+    // turns software correction off.
+    public void setColorCorrection(double gamma, double red, double green, double blue) {
+        this.gamma = gamma;
+        this.whitepoint = new double[] {red, green, blue};
+        displayLutStale = true;
+    }
+
+    private void postProcess(FrameContext ctx) {
+        if (displayLutStale || ctx.getBrightness() != lutBrightness || ctx.getContrast() != lutContrast || ctx.getLuminance() != lutLuminance) {
+            displayLut.reset();
+            displayLut.compose(ColorLut.brightnessContrast(ctx.getBrightness(), ctx.getContrast()));
+            displayLut.compose(ColorLut.scaleBrightness(ctx.getLuminance()));
+            if (gamma > 0) {
+                displayLut.compose(ColorLut.gamma(gamma));
+                displayLut.compose(ColorLut.whitepoint(whitepoint[0], whitepoint[1], whitepoint[2]));
+            }
+            lutBrightness = ctx.getBrightness();
+            lutContrast = ctx.getContrast();
+            lutLuminance = ctx.getLuminance();
+            displayLutStale = false;
+        }
+
+        boolean identity = displayLut.isIdentity();
+        mesh.beginFullFrame();
+        for (int i = 0; i < frame.length; i++) {
+            mesh.setColor(i, identity ? frame[i] : displayLut.map(frame[i]));
+        }
+    }
+
+    /** Bulk alternative to drawPixel(): fill in the color of every pixel for this frame.
+     *  Override this to render the whole frame in tight array loops rather than one virtual
+     *  call per pixel. The default implementation calls drawPixel() for each pixel (in parallel,
+     *  if enabled).
+     * @param out colors by pixel ordinal (index into mesh.coords()); on entry it holds the previous
+     *            frame's output, so pixels that haven't changed may be left alone.
+     * @param ctx timing and display parameters for this frame.
+     */
+    protected void drawFrame(int[] out, FrameContext ctx) {
+        if (renderThreads > 1 && out.length > renderChunkSize) {
+            if (renderPool == null) {
+                renderPool = new ForkJoinPool(renderThreads);
+            }
+            renderPool.invoke(new RenderChunk(out, 0, out.length, ctx.getTime()));
+        } else {
+            renderPixels(out, 0, out.length, ctx.getTime());
+        }
+    }
+
+    // Restrict the default drawFrame() to the pixels (by ordinal) whose entry in 'mask' is true; the
+    // rest keep the color they had last frame. Pass null to draw every pixel again. The mask is read
+    // while drawing, so don't modify it until drawFrame() returns.
+    protected void setRedrawMask(boolean[] mask) {
+        redrawMask = mask;
+    }
+
+    // Draw pixels [start, end) of mesh.coords() into 'out'. Called concurrently for disjoint ranges
+    // in parallel mode.
+    private void renderPixels(int[] out, int start, int end, double t) {
+        List<? extends T> coords = mesh.coords();
+        boolean[] mask = redrawMask;
+        for (int i = start; i < end; i++) {
+            if (mask == null || mask[i]) {
+                out[i] = drawPixel(coords.get(i), t);
+            }
+        }
+    }
+
+    private class RenderChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int[] out;
+        final int start, end;
+        final double t;
+
+        RenderChunk(int[] out, int start, int end, double t) {
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            this.t = t;
+        }
+
+        protected void compute() {
+            if (end - start <= renderChunkSize) {
+                renderPixels(out, start, end, t);
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new RenderChunk(out, start, mid, t), new RenderChunk(out, mid, end, t));
+            }
+        }
+    }
+
     // Main method that need to be implemented.
+    // Thread safety: with parallel rendering enabled (setParallelRendering(), or the render_threads
+    // sketch property), this is called concurrently from several threads, each for a different pixel.
+    // Implementations may read shared state but must not modify it; do per-frame state updates in
+    // preFrame(), which always runs on the animation thread before any pixels are drawn.
     protected abstract int drawPixel(T c, double t);
 
     /** Override this for pre-draw stuff.
@@ -95,16 +256,12 @@ public abstract class PixelMeshAnimation<T extends LedPixel> {
     // Run the animation
     // note: never returns!
     public void run(float maxFPS) {
+        FramePacer.OverloadPolicy policy = FramePacer.OverloadPolicy.fromProperty(
+            Config.getSketchProperty("frame_pacing", FramePacer.OverloadPolicy.SKIP.propertyValue));
+        pacer = new FramePacer(maxFPS, policy);
 	while (true) {
-            double start = Config.clock();
-            draw(start);
-            double end = Config.clock();
-            double elapsed = end - start;
-	    double delay = Math.max(1./maxFPS - elapsed, 0);
-            try {
-                Thread.sleep((int)Math.round(1000. * delay));
-            } catch (InterruptedException ie) {
-            }
+            pacer.waitForNextFrame();
+            draw(Config.clock());
         }
     }
 
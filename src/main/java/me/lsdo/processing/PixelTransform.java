@@ -1,5 +1,6 @@
 package me.lsdo.processing;
 
+import java.util.*;
 import me.lsdo.processing.util.*;
 
 public abstract class PixelTransform {
@@ -19,6 +20,53 @@ public abstract class PixelTransform {
 	throw new RuntimeException("not implemented");
     }
 
+    // Override this if the transform is affine (for the given pixel -- as with transform(), 'px'
+    // may be a representative pixel, or null if the transform doesn't depend on the pixel): apply
+    // the transform after the mapping already in 'm' and return true. Return false if the transform
+    // isn't affine, in which case 'm' is left undefined.
+    public boolean concatAffine(LedPixel px, Affine m) {
+	return false;
+    }
+
+    // Set 'out' to this transform's matrix for pixel 'px', if the transform is affine. Lets callers
+    // transform many points with primitive math rather than a chain of transform() calls.
+    public final boolean getAffine(LedPixel px, Affine out) {
+	out.setIdentity();
+	return concatAffine(px, out);
+    }
+
+    // Override to return true if the transform is the same for every pixel (never looks at 'px')
+    public boolean isPixelIndependent() {
+	return false;
+    }
+
+    // Transform points in bulk. The points belonging to pixels.get(i) are (xs[k], ys[k]) for
+    // offsets[i] <= k < offsets[i+1]; if 'offsets' is null, there is exactly one point per pixel.
+    // Results go to outXs/outYs, which may be the same arrays as xs/ys. The default implementation
+    // maps each pixel's points with a single matrix where the transform is affine, and otherwise
+    // falls back to transform() per point.
+    public void transform(List<? extends LedPixel> pixels, int[] offsets, float[] xs, float[] ys, float[] outXs, float[] outYs) {
+	Affine m = new Affine();
+	if (isPixelIndependent() && getAffine(null, m)) {
+	    m.map(xs, ys, outXs, outYs, 0, offsets == null ? pixels.size() : offsets[pixels.size()]);
+	    return;
+	}
+	for (int i = 0; i < pixels.size(); i++) {
+	    LedPixel px = pixels.get(i);
+	    int start = (offsets == null ? i : offsets[i]);
+	    int end = (offsets == null ? i + 1 : offsets[i + 1]);
+	    if (getAffine(px, m)) {
+		m.map(xs, ys, outXs, outYs, start, end);
+	    } else {
+		for (int k = start; k < end; k++) {
+		    PVector2 p = transform(px, LayoutUtil.V(xs[k], ys[k]));
+		    outXs[k] = p.x;
+		    outYs[k] = p.y;
+		}
+	    }
+	}
+    }
+
     // return a new transform that first applies this transform, then 'tx'
     public PixelTransform compoundTransform(final PixelTransform tx) {
 	final PixelTransform baseTx = this;
@@ -30,6 +78,25 @@ public abstract class PixelTransform {
 	    public PVector2 transform(PVector2 xy) {
 		return tx.transform(baseTx.transform(xy));
 	    }
+
+	    public boolean concatAffine(LedPixel px, Affine m) {
+		return baseTx.concatAffine(px, m) && tx.concatAffine(px, m);
+	    }
+
+	    public boolean isPixelIndependent() {
+		return baseTx.isPixelIndependent() && tx.isPixelIndependent();
+	    }
+
+	    // a uniform chain folds into a single matrix; otherwise each half makes its own pass, so
+	    // uniform parts of the chain are still only resolved once
+	    public void transform(List<? extends LedPixel> pixels, int[] offsets, float[] xs, float[] ys, float[] outXs, float[] outYs) {
+		if (isPixelIndependent()) {
+		    super.transform(pixels, offsets, xs, ys, outXs, outYs);
+		} else {
+		    baseTx.transform(pixels, offsets, xs, ys, outXs, outYs);
+		    tx.transform(pixels, offsets, outXs, outYs, outXs, outYs);
+		}
+	    }
 	};
     }
 
@@ -46,6 +113,11 @@ public abstract class PixelTransform {
 	int radial_steps = 64;
 	double xmargin = 0;
 	double ymargin = 0;
+	Affine m = new Affine();
+	if (getAffine(ref, m)) {
+	    // closed form of the search below: the transformed unit circle's max x and y
+	    return LayoutUtil.V(Math.max(Math.hypot(m.a, m.b) + m.tx, 0), Math.max(Math.hypot(m.c, m.d) + m.ty, 0));
+	}
 	for (int i = 0; i < radial_steps; i++) {
 	    PVector2 margin = LayoutUtil.polarToXy(LayoutUtil.V(1., (float)i / radial_steps * 2*Math.PI));
 	    PVector2 txMargin = transform(ref, margin);
@@ -1,6 +1,8 @@
 package me.lsdo.processing;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import processing.core.PApplet;
 import me.lsdo.processing.util.*;
 
@@ -14,59 +16,259 @@ public class ProcessingAnimation extends WindowAnimation {
     public boolean stretchDefault() { return false; }
 
     // locations of mesh points to mark on processing canvas
-    // use set to avoid duplicates, since we use xor to mark
-    private Set<Integer> pixelPositions;
-    
+    // no duplicates, since we use xor to mark
+    private volatile int[] pixelPositions;
+    // positions marked by the last drawOverlay(), and the marked colors left on the canvas there
+    private int[] markedPositions;
+    private int[] markedColors;
+
+    // canvas contents being sampled this frame
+    private int[] window;
+
+    // Pipelined mode: the sketch thread snapshots the canvas into a ring of three buffers and
+    // handles input and transform updates; a worker thread samples the newest snapshot,
+    // post-processes and dispatches it. Handoff works like OPC's triple buffer: the sketch thread
+    // owns the 'back' snapshot, the worker the 'front', and the 'middle' one is exchanged
+    // atomically, so the LEDs lag the canvas by at most a frame. Each snapshot carries the
+    // FrameContext it was taken with.
+    private Thread pipelineThread;
+    private int[][] snapshots;
+    private FrameContext[] snapshotContexts;
+    // held by the worker while it renders, and by the sketch thread only while it applies an input
+    // event or rebuilds the sample tables, so those never overlap a render
+    private final Object frameLock = new Object();
+    private int backSnapshot = 0;
+    private int frontSnapshot = 1;
+    // low bits: index of the middle snapshot; FRESH bit: middle snapshot not yet sampled
+    private final AtomicInteger handoff = new AtomicInteger(2);
+    private static final int SLOT_MASK = 0x3;
+    private static final int FRESH = 0x4;
+    // worker thread only: last error reported by samplePipeline()
+    private String lastPipelineError;
+
     public ProcessingAnimation(PApplet app, PixelMesh<? extends LedPixel> mesh){
         super(mesh);
         this.app = app;
 	initViewport(app.width, app.height);
+	if (Config.getSketchProperty("pipelined", false)) {
+	    startPipeline();
+	}
+    }
+
+    // Switch to pipelined mode: from now on, draw() snapshots the canvas and handles input, while
+    // LED sampling, post-processing and dispatch happen on a separate worker thread.
+    // Threading contract:
+    // - on the sketch thread, inside draw(): init(), input handling and so parameter onChange()/
+    //   onSet() callbacks, transform updates (transformChanged() and the like), the overlay
+    // - on the worker thread: preFrame(), drawFrame()/drawPixel(), postFrame()
+    // Input events and transform updates wait for the worker to finish its current frame, so they
+    // never overlap preFrame()/drawPixel()/postFrame(); the worker does run concurrently with the rest
+    // of the sketch's draw(). So preFrame()/drawPixel()/postFrame() overrides must not touch the
+    // canvas or state the sketch modifies outside of parameter callbacks, and should read
+    // parameters through the FrameContext or values captured in callbacks.
+    public synchronized void startPipeline() {
+	if (pipelineThread != null) {
+	    return;
+	}
+	snapshots = new int[3][0];
+	snapshotContexts = new FrameContext[3];
+	for (int i = 0; i < 3; i++) {
+	    snapshotContexts[i] = new FrameContext(0, 0, 0, 0, 0, 0);
+	}
+	pipelineThread = new Thread(new Runnable() {
+		public void run() {
+		    samplePipeline();
+		}
+	    }, "processing-animation-pipeline");
+	pipelineThread.setDaemon(true);
+	pipelineThread.start();
+    }
+
+    public boolean isPipelined() {
+	return pipelineThread != null;
+    }
+
+    // Worker thread: wait for a fresh snapshot, take ownership of it, and render from it
+    private void samplePipeline() {
+	for (; ; ) {
+	    if ((handoff.get() & FRESH) == 0) {
+		LockSupport.park(this);
+		continue;
+	    }
+	    int prev = handoff.getAndSet(frontSnapshot);
+	    frontSnapshot = prev & SLOT_MASK;
+	    try {
+		synchronized (frameLock) {
+		    renderFrame(snapshotContexts[frontSnapshot]);
+		}
+	    } catch (RuntimeException e) {
+		// drop the frame but keep the LEDs running; report each distinct error once rather
+		// than every frame
+		String error = e.toString();
+		if (!error.equals(lastPipelineError)) {
+		    System.err.println("error rendering pipelined frame:");
+		    e.printStackTrace();
+		    lastPipelineError = error;
+		}
+	    }
+	}
+    }
+
+    // Sketch thread, pipelined mode: apply input events one at a time, holding off the worker only
+    // when there's actually something to apply
+    @Override
+    void handleInput() {
+	if (pipelineThread == null) {
+	    super.handleInput();
+	    return;
+	}
+	for (; ; ) {
+	    String msg = ctrl.receiveInput();
+	    if (msg == null) {
+		break;
+	    }
+	    synchronized (frameLock) {
+		ctrl.processInputEvent(msg);
+	    }
+	}
     }
 
     @Override
     public void captureFrame() {
-        app.loadPixels();
+	if (pipelineThread != null) {
+	    window = snapshots[frontSnapshot];
+	} else {
+	    app.loadPixels();
+	    clearOverlay();
+	    window = app.pixels;
+	}
     }
 
     @Override
     public int getPixel(int x, int y) {
-	return app.pixels[linearOffset(x, y)];
+	return window[linearOffset(x, y)];
+    }
+
+    @Override
+    public int getPixel(int offset) {
+	return window[offset];
+    }
+
+    @Override
+    public int[] getPixels() {
+	return window;
     }
 
     @Override
     protected void postFrame(double t){
-	for (int ix : pixelPositions) {
-	    app.pixels[ix] = 0xFFFFFF ^ app.pixels[ix];
-        }
+	if (pipelineThread == null) {
+	    drawOverlay();
+	}
+    }
+
+    // Mark the LED positions on the canvas and show status text (sketch thread only)
+    private void drawOverlay() {
+	int[] positions = pixelPositions;
+	if (markedColors == null || markedColors.length != positions.length) {
+	    markedColors = new int[positions.length];
+	}
+	for (int i = 0; i < positions.length; i++) {
+	    int ix = positions[i];
+	    markedColors[i] = 0xFFFFFF ^ app.pixels[ix];
+	    app.pixels[ix] = markedColors[i];
+	}
+	markedPositions = positions;
 
         app.updatePixels();
 
+	// the marks are for the screen only: put the sketch's colors back in pixels[]
+	for (int ix : positions) {
+	    app.pixels[ix] = 0xFFFFFF ^ app.pixels[ix];
+	}
+
         // on screen text
         app.fill(127f, 256f);
         app.text("opc @" + mesh.getOpcHosts(), 100, app.height - 10);
         app.text(String.format("%.1ffps", app.frameRate), 10, app.height - 10);
     }
 
+    // Undo last frame's marks in freshly loaded pixels[], where the sketch hasn't drawn over them
+    // (i.e., it doesn't repaint the whole canvas every frame); otherwise they'd be sampled, and the
+    // tiles holding LEDs would never hash as unchanged
+    private void clearOverlay() {
+	if (markedPositions == null) {
+	    return;
+	}
+	for (int i = 0; i < markedPositions.length; i++) {
+	    int ix = markedPositions[i];
+	    if (ix < app.pixels.length && app.pixels[ix] == markedColors[i]) {
+		app.pixels[ix] = 0xFFFFFF ^ app.pixels[ix];
+	    }
+	}
+    }
+
     public void draw()
     {
-        draw(app.millis() / 1000.);
+	if (pipelineThread == null) {
+	    draw(app.millis() / 1000.);
+	    return;
+	}
+
+	app.loadPixels();
+	clearOverlay();
+	int[] snapshot = snapshots[backSnapshot];
+	if (snapshot.length != app.pixels.length) {
+	    snapshot = snapshots[backSnapshot] = new int[app.pixels.length];
+	}
+	System.arraycopy(app.pixels, 0, snapshot, 0, snapshot.length);
+	// the back slot is ours alone, so no lock; prepareFrame() takes it itself if an input event or
+	// transform update has to touch state the worker reads
+	snapshotContexts[backSnapshot].set(prepareFrame(app.millis() / 1000.));
+	int prev = handoff.getAndSet(backSnapshot | FRESH);
+	backSnapshot = prev & SLOT_MASK;
+	LockSupport.unpark(pipelineThread);
+
+	if (pixelPositions != null) {
+	    drawOverlay();
+	}
     }
 
     @Override
     public void transformChanged() {
-	super.transformChanged();
+	if (pipelineThread != null) {
+	    // rebuilds the sample tables the worker renders from
+	    synchronized (frameLock) {
+		super.transformChanged();
+	    }
+	} else {
+	    super.transformChanged();
+	}
 	initPixelPositions();
     }
 
     private void initPixelPositions() {
-	pixelPositions = new HashSet<Integer>();
-	for (LedPixel c : mesh.coords()) {
-	    PVector2 screenP = LayoutUtil.xyToScreen(transform.transform(c), app.width, app.height);
-	    int[] xy = boundsCheck(screenP);
-	    if (xy != null) {
-		pixelPositions.add(linearOffset(xy[0], xy[1]));
+	float[] xs = mesh.getPixelXs().clone();
+	float[] ys = mesh.getPixelYs().clone();
+	transform.transform(mesh.coords(), null, xs, ys, xs, ys);
+	toIntermediateRepresentation(xs, ys, 0, xs.length);
+
+	int[] positions = new int[xs.length];
+	int n = 0;
+	for (int i = 0; i < xs.length; i++) {
+	    int x = (int)Math.floor(xs[i]);
+	    int y = (int)Math.floor(ys[i]);
+	    if (inBounds(x, y)) {
+		positions[n++] = linearOffset(x, y);
+	    }
+	}
+	Arrays.sort(positions, 0, n);
+	int unique = 0;
+	for (int i = 0; i < n; i++) {
+	    if (unique == 0 || positions[i] != positions[unique - 1]) {
+		positions[unique++] = positions[i];
 	    }
-        }
+	}
+	pixelPositions = Arrays.copyOf(positions, unique);
     }
 
 }
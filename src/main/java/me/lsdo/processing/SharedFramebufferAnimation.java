@@ -0,0 +1,156 @@
+package me.lsdo.processing;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Animation that samples frames written to a memory-mapped file by some other local process
+ * (a video decoder, an external visualizer, ...). Pixels are read straight out of the mapping,
+ * and no sampling is done at all until the writer publishes a new frame.
+ *
+ * File layout (all values little-endian):
+ *   0  int   magic, the bytes "LSFB"
+ *   4  int   format version (1)
+ *   8  int   frame width
+ *   12 int   frame height
+ *   16 long  frame sequence number
+ *   24 int   index (0 or 1) of the buffer holding the latest frame
+ *   28 int   reserved
+ *   32       two frame buffers of width * height ARGB pixels each (4 bytes per pixel, row-major,
+ *            top row first); as bytes, B G R A -- e.g., ffmpeg's 'bgra' pixel format
+ *
+ * To publish a frame, the writer fills the buffer that is NOT the current one, then stores its
+ * index, then increments the sequence number. To change the frame size, extend the file to fit,
+ * then rewrite the header with the new dimensions, then increment the sequence number. The
+ * sequence number works like a seqlock: the header and pixels are only trusted if it reads the
+ * same before and after, so a frame that was overwritten while it was being sampled is sampled
+ * again.
+ */
+public class SharedFramebufferAnimation extends WindowAnimation {
+
+    public static final int MAGIC = 0x4246534c;  // "LSFB"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int WIDTH_OFFSET = 8;
+    static final int HEIGHT_OFFSET = 12;
+    static final int SEQUENCE_OFFSET = 16;
+    static final int ACTIVE_OFFSET = 24;
+
+    private String path;
+    private MappedByteBuffer mapped;
+    private IntBuffer framePixels;
+
+    // sequence number of the frame being sampled, and where it starts within framePixels
+    private long sequence = -1;
+    private int frameStart;
+    private boolean fresh;
+
+    public SharedFramebufferAnimation(PixelMesh<? extends LedPixel> mesh, String path) {
+	super(mesh);
+	this.path = path;
+	map();
+	initViewport(mapped.getInt(WIDTH_OFFSET), mapped.getInt(HEIGHT_OFFSET));
+    }
+
+    // (Re)map the file for the frame size currently in its header. The file is only open while
+    // mapping it; the mapping stays valid after it's closed.
+    private void map() {
+	try {
+	    RandomAccessFile file = new RandomAccessFile(path, "r");
+	    try {
+		FileChannel channel = file.getChannel();
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+		    throw new IOException("not a version " + VERSION + " shared framebuffer");
+		}
+		long frameSize = 4L * header.getInt(WIDTH_OFFSET) * header.getInt(HEIGHT_OFFSET);
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + 2 * frameSize);
+	    } finally {
+		file.close();
+	    }
+	} catch (IOException e) {
+	    throw new RuntimeException("can't map shared framebuffer at " + path, e);
+	}
+	mapped.order(ByteOrder.LITTLE_ENDIAN);
+	mapped.position(HEADER_SIZE);
+	framePixels = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	mapped.position(0);
+    }
+
+    // The writer's current sequence number. Reads of the mapping are plain loads, and Java offers
+    // no portable way to order them against another process's stores, so the seqlock relies on
+    // the hardware: x86 doesn't reorder loads with other loads, and each frame's reads happen in
+    // separate calls the JIT has no reason to hoist across. On weakly-ordered CPUs a frame torn by
+    // the writer may occasionally go undetected, until the writer's next frame replaces it.
+    private long readSequence() {
+	return mapped.getLong(SEQUENCE_OFFSET);
+    }
+
+    @Override
+    public void captureFrame() {
+	long seq = readSequence();
+	int w = mapped.getInt(WIDTH_OFFSET);
+	int h = mapped.getInt(HEIGHT_OFFSET);
+	int active = mapped.getInt(ACTIVE_OFFSET);
+	if (readSequence() != seq) {
+	    // the writer was updating the header; pick up its changes next frame
+	    fresh = false;
+	    skipFrame();
+	    return;
+	}
+
+	if (w != width || h != height) {
+	    // the samples are laid out for the old size until the transform is re-applied (next
+	    // frame), so don't sample this one, and sample whatever frame is current after that
+	    map();
+	    initViewport(mapped.getInt(WIDTH_OFFSET), mapped.getInt(HEIGHT_OFFSET));
+	    sequence = -1;
+	    frameStart = (active & 1) * w * h;
+	    fresh = false;
+	    skipFrame();
+	    return;
+	}
+
+	fresh = (seq != sequence);
+	if (fresh) {
+	    sequence = seq;
+	    frameStart = (active & 1) * w * h;
+	}
+    }
+
+    @Override
+    protected void postFrame(double t) {
+	super.postFrame(t);
+	if (fresh && readSequence() != sequence) {
+	    // the writer published while this frame was being sampled, and may have started
+	    // overwriting it; the LEDs may show a mix of frames, so sample again next frame
+	    sequence = -1;
+	    invalidateSamples();
+	}
+    }
+
+    @Override
+    protected boolean windowChanged() {
+	return fresh;
+    }
+
+    // sequence number of the frame currently displayed
+    public long getSequence() {
+	return sequence;
+    }
+
+    @Override
+    public int getPixel(int x, int y) {
+	return framePixels.get(frameStart + linearOffset(x, y));
+    }
+
+    @Override
+    public int getPixel(int offset) {
+	return framePixels.get(frameStart + offset);
+    }
+
+}
@@ -32,6 +32,61 @@ public abstract class WindowAnimation extends XYAnimation {
 
     public double outsideViewportProportion;
 
+    // linear window offset (see linearOffset()) of each sample, or -1 if the sample falls outside
+    // the window; rebuilt whenever the samples move
+    private int[] windowOffsets;
+
+    // How LED colors are computed from the window:
+    // DIRECT (default): evaluate every sample each frame via samplePoint()
+    // SPARSE: compile the samples into a sparse weight matrix, merging samples that hit the same
+    //   window pixel, and apply it each frame
+    // BILINEAR: as SPARSE, but each sample bilinearly interpolates the nearest window pixels
+    // MIP: ignore the individual samples; build a box-filtered mip pyramid of the window each frame
+    //   and take one bilinear sample per LED from the level matching the LED's footprint. Best for
+    //   windows much larger than the LED density.
+    // SPARSE and BILINEAR bypass samplePoint(), so DIRECT is always used if a subclass overrides it
+    // (and says so via usesCustomSamplePoint()).
+    // They also sample like DIRECT while the transform is animating, rather than recompiling the
+    // matrix every frame.
+    public enum SamplingMode {
+	DIRECT,
+	SPARSE,
+	BILINEAR,
+	MIP
+    }
+    private SamplingMode samplingMode;
+    private WindowResampler resampler;
+    // usesCustomSamplePoint(), as of construction
+    private final boolean customSamplePoint;
+
+    // MIP mode state: window position and pyramid level of each LED (level -1 if outside the window)
+    private MipPyramid mip;
+    private float[] mipXs;
+    private float[] mipYs;
+    private int[] mipLevels;
+    private int mipMaxLevel;
+    // footprints changed since the pyramid was last built
+    private boolean mipStale;
+    // the three points mapped per LED to find its footprint; reused while the transform animates
+    private float[] mipProbeXs;
+    private float[] mipProbeYs;
+    private int[] mipProbeOffsets;
+
+    // samples moved since the last frame was drawn
+    private boolean samplesChanged = true;
+
+    // Dirty-tile change detection (off if dirtyTileSize is 0): the window is hashed in tiles of
+    // this many pixels square after each capture, and only LEDs whose footprint overlaps a tile
+    // that changed since the last frame are resampled. Worthwhile when the sketch only redraws
+    // part of its canvas each frame.
+    private int dirtyTileSize;
+    private DirtyTiles dirtyTiles;
+    private boolean[] redrawLeds;
+    // window differs from the previous frame (as far as change detection can tell)
+    private boolean windowDirty;
+    // captureFrame() said the window can't be sampled this frame; see skipFrame()
+    private boolean skipFrame;
+
     public static final int DEFAULT_AA = 8;
 
     public WindowAnimation(final PixelMesh<? extends LedPixel> mesh) {
@@ -47,6 +102,14 @@ public abstract class WindowAnimation extends XYAnimation {
 		public PVector2 transform(PVector2 p) {
 		    return windowTransform.transform(p);
 		}
+
+		public boolean concatAffine(LedPixel px, Affine m) {
+		    return windowTransform.concatAffine(px, m);
+		}
+
+		public boolean isPixelIndependent() {
+		    return windowTransform.isPixelIndependent();
+		}
 	    });
 
 	stretchAspect = mesh.new BoolPlacementParameter("stretch aspect");
@@ -69,6 +132,42 @@ public abstract class WindowAnimation extends XYAnimation {
 	yo = mesh.new PlacementParameter("post-stretch y-offset");
 	yo.setSensitivity(.01);
 	yo.init(Config.getSketchProperty("placement_yo_poststretch", 0.));
+
+	customSamplePoint = usesCustomSamplePoint();
+	samplingMode = SamplingMode.valueOf(Config.getSketchProperty("window_sampling", "direct").toUpperCase());
+	if (customSamplePoint && samplingMode != SamplingMode.DIRECT) {
+	    System.out.println("samplePoint() is overridden; using direct window sampling");
+	}
+	dirtyTileSize = Config.getSketchProperty("dirty_tile_size", 0);
+    }
+
+    public SamplingMode getSamplingMode() {
+	return samplingMode;
+    }
+
+    // The mode actually in effect
+    private SamplingMode effectiveSamplingMode() {
+	return customSamplePoint ? SamplingMode.DIRECT : samplingMode;
+    }
+
+    public void setSamplingMode(SamplingMode mode) {
+	samplingMode = mode;
+	mesh.txChanged = true;
+    }
+
+    public int getDirtyTileSize() {
+	return dirtyTileSize;
+    }
+
+    // Enable dirty-tile change detection with tiles of the given size in window pixels, or disable
+    // it with 0. Assumes each sample reads only the window pixel(s) it lands on, so don't use it
+    // with a samplePoint() override that looks elsewhere.
+    public void setDirtyTileSize(int tileSize) {
+	if (tileSize < 0) {
+	    throw new IllegalArgumentException("tile size must be non-negative");
+	}
+	dirtyTileSize = tileSize;
+	mesh.txChanged = true;
     }
 
     public double getWindowAspectRatio() {
@@ -101,23 +200,225 @@ public abstract class WindowAnimation extends XYAnimation {
 			    double aspectCorrection = aspectRatio / getWindowAspectRatio();
 			    return LayoutUtil.V(p.x / aspectCorrection, p.y);
 			}
+
+			public boolean concatAffine(LedPixel px, Affine m) {
+			    double aspectCorrection = aspectRatio / getWindowAspectRatio();
+			    m.scale(1. / aspectCorrection, 1.);
+			    return true;
+			}
+
+			public boolean isPixelIndependent() {
+			    return true;
+			}
 		    };
 	    }
 	}
 	applyTransform(transform);
-	outsideViewportProportion = proportionOutsideBounds();
-	if (outsideViewportProportion > 0) {
-	    System.out.println(String.format("%.2f%% outsize window area!", 100. * outsideViewportProportion));
+	if (!transformIsAnimating) {
+	    outsideViewportProportion = proportionOutsideBounds();
+	    if (outsideViewportProportion > 0) {
+		System.out.println(String.format("%.2f%% outsize window area!", 100. * outsideViewportProportion));
+	    }
+	}
+    }
+
+    // While the transform animates, this runs every frame, so only the per-sample tables that are
+    // cheap to update in place (the gather table, MIP footprints) are maintained; the resampling
+    // matrix and the dirty-tile lists are compiled once the transform settles.
+    @Override
+    public void applyTransform(PixelTransform tx) {
+	super.applyTransform(tx);
+	initWindowOffsets();
+	SamplingMode mode = effectiveSamplingMode();
+	boolean settled = !transformIsAnimating;
+	resampler = (settled && (mode == SamplingMode.SPARSE || mode == SamplingMode.BILINEAR) ?
+		     WindowResampler.build(this, mode == SamplingMode.BILINEAR) : null);
+	if (mode == SamplingMode.MIP) {
+	    initMipFootprints(tx);
+	} else {
+	    mip = null;
+	}
+	if (settled) {
+	    initDirtyTiles();
+	} else {
+	    // every frame is redrawn in full while the samples move
+	    dirtyTiles = null;
+	}
+	samplesChanged = true;
+    }
+
+    // Work out which tiles each LED's footprint reads from, according to the sampling mode
+    private void initDirtyTiles() {
+	if (dirtyTileSize == 0) {
+	    dirtyTiles = null;
+	    redrawLeds = null;
+	    return;
+	}
+	int n = mesh.getNumPoints();
+	dirtyTiles = new DirtyTiles(dirtyTileSize, width, height, n);
+	redrawLeds = new boolean[n];
+	for (int i = 0; i < n; i++) {
+	    dirtyTiles.startLed(i);
+	    if (mip != null) {
+		int level = mipLevels[i];
+		if (level >= 0) {
+		    // the bilinear taps (see MipPyramid.sample()) cover two level-L pixels in each
+		    // direction, each 2^L window pixels wide
+		    int scale = 1 << level;
+		    int tx = (int)Math.floor(mipXs[i] / scale - .5);
+		    int ty = (int)Math.floor(mipYs[i] / scale - .5);
+		    tx = Math.max(0, Math.min(tx, (width - 1) / scale));
+		    ty = Math.max(0, Math.min(ty, (height - 1) / scale));
+		    dirtyTiles.addPixels(tx * scale, ty * scale, (tx + 2) * scale - 1, (ty + 2) * scale - 1);
+		}
+		continue;
+	    }
+	    for (int k = sampleStart(i); k < sampleEnd(i); k++) {
+		int offset = windowOffsets[k];
+		if (offset < 0) {
+		    continue;
+		}
+		if (effectiveSamplingMode() == SamplingMode.BILINEAR) {
+		    int x0 = (int)Math.floor(sampleX(k) - .5);
+		    int y0 = (int)Math.floor(sampleY(k) - .5);
+		    dirtyTiles.addPixels(x0, y0, x0 + 1, y0 + 1);
+		} else {
+		    int x = offset % width;
+		    int y = offset / width;
+		    dirtyTiles.addPixels(x, y, x, y);
+		}
+	    }
+	}
+	dirtyTiles.finish();
+    }
+
+    // Find each LED's center in the window and the area its footprint (a disk of radius
+    // mesh.getPixelBufferRadius()) covers there, by mapping the center and two offset points.
+    // The LED samples the level whose pixel size is between 1/2 and 1 times the footprint's
+    // diameter, so bilinear interpolation there approximates a filter the size of the footprint.
+    private void initMipFootprints(PixelTransform tx) {
+	List<? extends LedPixel> coords = mesh.coords();
+	int n = coords.size();
+	double r = mesh.getPixelBufferRadius();
+	float[] pixelXs = mesh.getPixelXs();
+	float[] pixelYs = mesh.getPixelYs();
+	if (mipProbeOffsets == null || mipProbeOffsets.length != n + 1) {
+	    mipProbeXs = new float[3 * n];
+	    mipProbeYs = new float[3 * n];
+	    mipProbeOffsets = new int[n + 1];
+	    for (int i = 0; i <= n; i++) {
+		mipProbeOffsets[i] = 3 * i;
+	    }
+	    mipXs = new float[n];
+	    mipYs = new float[n];
+	    mipLevels = new int[n];
+	}
+	float[] xs = mipProbeXs;
+	float[] ys = mipProbeYs;
+	for (int i = 0; i < n; i++) {
+	    xs[3*i] = pixelXs[i];
+	    ys[3*i] = pixelYs[i];
+	    xs[3*i + 1] = (float)(pixelXs[i] + r);
+	    ys[3*i + 1] = pixelYs[i];
+	    xs[3*i + 2] = pixelXs[i];
+	    ys[3*i + 2] = (float)(pixelYs[i] + r);
+	}
+	tx.transform(coords, mipProbeOffsets, xs, ys, xs, ys);
+	toIntermediateRepresentation(xs, ys, 0, 3 * n);
+
+	mipMaxLevel = 0;
+	for (int i = 0; i < n; i++) {
+	    float x = xs[3*i];
+	    float y = ys[3*i];
+	    double cross = (xs[3*i + 1] - x) * (ys[3*i + 2] - y) - (ys[3*i + 1] - y) * (xs[3*i + 2] - x);
+	    // diameter of a disk of the same area as the footprint, in window pixels
+	    double diameter = 2 * Math.sqrt(Math.abs(cross));
+	    int level = (diameter <= 2 ? 0 : (int)Math.ceil(Math.log(diameter) / Math.log(2)) - 1);
+	    mipXs[i] = x;
+	    mipYs[i] = y;
+	    mipLevels[i] = (inBounds((int)Math.floor(x), (int)Math.floor(y)) ? level : -1);
+	    mipMaxLevel = Math.max(mipMaxLevel, mipLevels[i]);
+	}
+	if (mip == null) {
+	    mip = new MipPyramid();
+	}
+	mipStale = true;
+    }
+
+    private void initWindowOffsets() {
+	int n = numSamples();
+	if (windowOffsets == null || windowOffsets.length != n) {
+	    windowOffsets = new int[n];
+	}
+	for (int k = 0; k < n; k++) {
+	    int x = (int)Math.floor(sampleX(k));
+	    int y = (int)Math.floor(sampleY(k));
+	    windowOffsets[k] = (inBounds(x, y) ? linearOffset(x, y) : -1);
 	}
     }
 
     public abstract void captureFrame();
     public abstract int getPixel(int x, int y);
+
+    // Override to return false (as of the latest captureFrame()) when the window contents are known
+    // to be identical to the previous frame's; sampling is then skipped and the LEDs keep their
+    // colors, unless the samples themselves have moved.
+    protected boolean windowChanged() {
+	return true;
+    }
+
+    // Call when the LEDs may no longer match what the window held when it was sampled (e.g., the
+    // window was overwritten mid-sample): the next frame is sampled in full, without skipping
+    // unchanged tiles.
+    protected void invalidateSamples() {
+	samplesChanged = true;
+    }
+
+    // Call from captureFrame() when the window can't be sampled this frame at all (e.g., it was
+    // just resized and the samples are still laid out for the old size): nothing is sampled, even
+    // if the samples have moved, and the LEDs keep their colors.
+    protected void skipFrame() {
+	skipFrame = true;
+    }
+
+    // Pixel at the given linear offset (width * y + x). Override this too if the window is stored as
+    // a flat array, so sampling is a plain gather.
+    public int getPixel(int offset) {
+	return getPixel(offset % width, offset / width);
+    }
+
+    // The whole window as a flat array (width * y + x), if it's stored that way, as of the last
+    // captureFrame(); null otherwise. Lets MIP sampling read the window without copying it.
+    public int[] getPixels() {
+	return null;
+    }
     
     @Override
     protected void preFrame(double t, double deltaT) {
 	long start = System.currentTimeMillis();
+	skipFrame = false;
 	captureFrame();
+	if (skipFrame) {
+	    windowDirty = false;
+	    return;
+	}
+	windowDirty = windowChanged();
+	if (windowDirty && dirtyTiles != null) {
+	    windowDirty = dirtyTiles.update(this);
+	}
+	if (mip != null && (windowDirty || mipStale)) {
+	    int[] pixels = getPixels();
+	    if (pixels != null) {
+		mip.setBase(pixels, width, height);
+	    } else {
+		int[] base = mip.base(width, height);
+		for (int i = 0; i < base.length; i++) {
+		    base[i] = getPixel(i);
+		}
+	    }
+	    mip.build(mipMaxLevel);
+	    mipStale = false;
+	}
 	long end = System.currentTimeMillis();
 	//System.out.println(String.format("capture: %d ms   framerate: %.1f", end - start, frameRate));
     }
@@ -128,35 +429,88 @@ public abstract class WindowAnimation extends XYAnimation {
 	return LayoutUtil.xyToScreen(p, width, height);
     }
 
+    // xyToScreen() as a matrix
+    @Override
+    protected boolean concatIntermediateAffine(Affine m) {
+	double scale = 2. / height;
+	m.scale(1. / scale, -1. / scale).translate(.5 * width, .5 * height);
+	return true;
+    }
+
     @Override
     protected int samplePoint(PVector2 p, double t) {
 	int[] c = boundsCheck(p);
 	return c != null ? getPixel(c[0], c[1]) : 0;
     }
 
+    // Override to return true if the subclass overrides samplePoint() (either form). Sampling then
+    // always goes through it, in DIRECT mode, instead of the precomputed window offsets and weight
+    // tables. Called once, from the constructor, so it must not depend on subclass fields.
+    protected boolean usesCustomSamplePoint() {
+	return false;
+    }
+
+    @Override
+    protected void drawFrame(int[] out, FrameContext ctx) {
+	if (skipFrame || (!windowDirty && !samplesChanged)) {
+	    // 'out' still holds the colors sampled last frame
+	    return;
+	}
+	boolean partial = (dirtyTiles != null && !samplesChanged);
+	if (partial) {
+	    dirtyTiles.markLeds(redrawLeds);
+	}
+	setRedrawMask(partial ? redrawLeds : null);
+	samplesChanged = false;
+	super.drawFrame(out, ctx);
+    }
+
+    @Override
+    protected int drawPixel(LedPixel c, double t) {
+	if (mip != null) {
+	    int level = mipLevels[c.ordinal];
+	    return level >= 0 ? mip.sample(level, mipXs[c.ordinal], mipYs[c.ordinal]) : 0;
+	}
+	if (resampler == null) {
+	    return super.drawPixel(c, t);
+	}
+	return resampler.apply(c.ordinal, this);
+    }
+
+    @Override
+    protected int samplePoint(int k, double t) {
+	if (customSamplePoint) {
+	    // hand the sample to the subclass's samplePoint(PVector2, double)
+	    return super.samplePoint(k, t);
+	}
+	int offset = windowOffsets[k];
+	return offset >= 0 ? getPixel(offset) : 0;
+    }
+
     int[] boundsCheck(PVector2 screenP) {
 	int x = (int)Math.floor(screenP.x);
 	int y = (int)Math.floor(screenP.y);
-	if (x < 0 || x >= width || y < 0 || y >= height) {
+	if (!inBounds(x, y)) {
 	    return null;
 	} else {
 	    return new int[] {x, y};
 	}
     }
 
+    boolean inBounds(int x, int y) {
+	return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
     int linearOffset(int x, int y) {
 	return width * y + x;
     }
 
     double proportionOutsideBounds() {
-	int total = 0;
+	int total = windowOffsets.length;
 	int oob = 0;
-	for (Map.Entry<LedPixel, ArrayList<PVector2>> e : points_ir.entrySet()) {
-	    for (PVector2 p : e.getValue()) {
-		total++;
-		if (boundsCheck(p) == null) {
-		    oob++;
-		}
+	for (int k = 0; k < total; k++) {
+	    if (windowOffsets[k] < 0) {
+		oob++;
 	    }
 	}
 	return (double)oob / total;
@@ -0,0 +1,135 @@
+package me.lsdo.processing;
+
+import java.util.*;
+import me.lsdo.processing.util.*;
+
+// A WindowAnimation's sampling compiled into a sparse matrix: each LED's color is a fixed weighted
+// sum of window pixels until the transform changes. Stored CSR-style -- the entries for the pixel
+// with ordinal i are [rowStart[i], rowStart[i+1]) of cols/weights -- with samples that land on the
+// same window pixel merged into a single entry. Weights are fixed-point (OpcColor.WEIGHT_ONE = 1.0);
+// samples falling outside the window contribute black, so a row's weights may sum to less than 1.
+
+public class WindowResampler {
+
+    private final int[] rowStart;
+    // linear window offset (see WindowAnimation.linearOffset()) of each entry
+    private final int[] cols;
+    private final int[] weights;
+
+    private WindowResampler(int[] rowStart, int[] cols, int[] weights) {
+	this.rowStart = rowStart;
+	this.cols = cols;
+	this.weights = weights;
+    }
+
+    public int numEntries() {
+	return rowStart[rowStart.length - 1];
+    }
+
+    // Resample the color of the pixel with ordinal 'row' from the window's current contents
+    public int apply(int row, WindowAnimation window) {
+	long acc = 0;
+	for (int j = rowStart[row]; j < rowStart[row + 1]; j++) {
+	    acc = OpcColor.accumulate(acc, window.getPixel(cols[j]), weights[j]);
+	}
+	return OpcColor.weightedAverage(acc);
+    }
+
+    // Compile the window's current samples. Each sample takes the window pixel it lands in, or, if
+    // 'bilinear', a bilinear blend of the four nearest pixel centers (clamped to the window edge).
+    public static WindowResampler build(WindowAnimation window, boolean bilinear) {
+	int numRows = window.mesh.getNumPoints();
+	int taps = (bilinear ? 4 : 1);
+	int[] rowStart = new int[numRows + 1];
+	int[] cols = new int[window.numSamples() * taps];
+	int[] weights = new int[window.numSamples() * taps];
+
+	// per-row scratch
+	int[] rowCols = new int[XYAnimation.MAX_SUBSAMPLING * taps];
+	double[] rowWeights = new double[XYAnimation.MAX_SUBSAMPLING * taps];
+
+	int n = 0;
+	for (int i = 0; i < numRows; i++) {
+	    int start = window.sampleStart(i);
+	    int end = window.sampleEnd(i);
+	    double sampleWeight = 1. / (end - start);
+
+	    int m = 0;
+	    for (int k = start; k < end; k++) {
+		double x = window.sampleX(k);
+		double y = window.sampleY(k);
+		int ix = (int)Math.floor(x);
+		int iy = (int)Math.floor(y);
+		if (!window.inBounds(ix, iy)) {
+		    continue;
+		}
+		if (!bilinear) {
+		    rowCols[m] = window.linearOffset(ix, iy);
+		    rowWeights[m++] = sampleWeight;
+		    continue;
+		}
+
+		// pixel centers are at half-integer coordinates
+		double fx = x - .5;
+		double fy = y - .5;
+		int x0 = (int)Math.floor(fx);
+		int y0 = (int)Math.floor(fy);
+		double ax = fx - x0;
+		double ay = fy - y0;
+		int xa = clamp(x0, window.width);
+		int xb = clamp(x0 + 1, window.width);
+		int ya = clamp(y0, window.height);
+		int yb = clamp(y0 + 1, window.height);
+		rowCols[m] = window.linearOffset(xa, ya);
+		rowWeights[m++] = sampleWeight * (1 - ax) * (1 - ay);
+		rowCols[m] = window.linearOffset(xb, ya);
+		rowWeights[m++] = sampleWeight * ax * (1 - ay);
+		rowCols[m] = window.linearOffset(xa, yb);
+		rowWeights[m++] = sampleWeight * (1 - ax) * ay;
+		rowCols[m] = window.linearOffset(xb, yb);
+		rowWeights[m++] = sampleWeight * ax * ay;
+	    }
+	    sortByCol(rowCols, rowWeights, m);
+
+	    // merge duplicate columns; quantize weights from the running total so rounding errors don't
+	    // accumulate across entries
+	    double total = 0;
+	    int quantizedTotal = 0;
+	    for (int j = 0; j < m; j++) {
+		total += rowWeights[j];
+		if (j + 1 < m && rowCols[j + 1] == rowCols[j]) {
+		    continue;
+		}
+		int q = (int)Math.round(total * OpcColor.WEIGHT_ONE);
+		if (q > quantizedTotal) {
+		    cols[n] = rowCols[j];
+		    weights[n++] = q - quantizedTotal;
+		    quantizedTotal = q;
+		}
+	    }
+	    rowStart[i + 1] = n;
+	}
+	return new WindowResampler(rowStart, Arrays.copyOf(cols, n), Arrays.copyOf(weights, n));
+    }
+
+    private static int clamp(int i, int size) {
+	return Math.min(Math.max(i, 0), size - 1);
+    }
+
+    // insertion sort; rows are short
+    private static void sortByCol(int[] cols, double[] weights, int n) {
+	for (int i = 1; i < n; i++) {
+	    int c = cols[i];
+	    double w = weights[i];
+	    int j = i - 1;
+	    while (j >= 0 && cols[j] > c) {
+		cols[j + 1] = cols[j];
+		weights[j + 1] = weights[j];
+		j--;
+	    }
+	    cols[j + 1] = c;
+	    weights[j + 1] = w;
+	}
+    }
+
+}
@@ -14,7 +14,7 @@ import me.lsdo.processing.interactivity.*;
 public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implements PixelTransform.TransformListener {
 
     public static final int DEFAULT_BASE_SUBSAMPLING = 1;
-    static final int MAX_SUBSAMPLING = 64;
+    static final int MAX_SUBSAMPLING = SamplePattern.MAX_SAMPLES;
 
     // number of subsamples per pixel (minimum -- may be increased by subsamplingBoost())
     private int baseSubsampling;
@@ -28,7 +28,33 @@ public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implement
     // display pixel's color. Most simply the samples will be xy-coordinates near the mesh pixels,
     // though they may also be transformed into some intermediate vector space (screen pixels, a
     // UV-mapped texture, etc.) for efficiency.
-    protected HashMap<LedPixel, ArrayList<PVector2>> points_ir;
+    // Stored compactly (CSR-style): the samples for the pixel with ordinal i are indices
+    // [sampleOffsets[i], sampleOffsets[i+1]) of sampleXs/sampleYs.
+    private float[] sampleXs;
+    private float[] sampleYs;
+    private int[] sampleOffsets;
+    // untransformed (mesh xy) position of each sample, kept so the samples can be cheaply re-projected
+    // while the transform animates
+    private float[] baseXs;
+    private float[] baseYs;
+    // whether the current samples were laid out for an animating transform
+    private boolean samplesAnimating;
+
+    // Seed for spatial and temporal sampling jitter; set the 'jitter_seed' sketch property to make
+    // sampling reproducible from run to run
+    private long jitterSeed;
+    // if > 0, precompute temporal jitter for this many frames (cycling) rather than hashing it per sample
+    private int jitterTableFrames;
+    // each rendering thread gets its own jitter stream, re-positioned at the start of every pixel
+    private ThreadLocal<Jitter> threadJitter;
+    // per-thread point handed to samplePoint(PVector2, double) by the default samplePoint(int, double)
+    private final ThreadLocal<PVector2> threadSamplePoint = new ThreadLocal<PVector2>() {
+	    @Override
+	    protected PVector2 initialValue() {
+		return new PVector2();
+	    }
+	};
+    private long jitterFrame;
 
     public XYAnimation(PixelMesh<? extends LedPixel> mesh) {
         this(mesh, DEFAULT_BASE_SUBSAMPLING);
@@ -41,6 +67,40 @@ public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implement
         super(mesh);
 	this.baseSubsampling = Config.getSketchProperty("subsampling", baseSubsampling);
 	this.dynamicSubsampling = Config.getSketchProperty("dynamic_subsampling", (int)Math.ceil(.3 * baseSubsampling));
+	String seed = Config.getSketchProperty("jitter_seed", "");
+	this.jitterSeed = (seed.isEmpty() ? System.nanoTime() : Long.parseLong(seed));
+	this.jitterTableFrames = Config.getSketchProperty("jitter_table_frames", 0);
+	initJitter();
+    }
+
+    public long getJitterSeed() {
+	return jitterSeed;
+    }
+
+    // Change the jitter seed; takes full effect (for spatial jitter) at the next transform change
+    public void setJitterSeed(long seed) {
+	jitterSeed = seed;
+	initJitter();
+    }
+
+    // (Re)build the jitter table, if enabled, and hand every thread a fresh jitter stream
+    private void initJitter() {
+	final long seed = jitterSeed;
+	final double[][] table = (jitterTableFrames > 0 && sampleXs != null ?
+				  Jitter.makeTable(seed, jitterTableFrames, sampleXs.length) : null);
+	threadJitter = new ThreadLocal<Jitter>() {
+		@Override
+		protected Jitter initialValue() {
+		    return new Jitter(seed, table);
+		}
+	    };
+    }
+
+    // The calling thread's jitter stream. Within drawPixel() and the samplePoint() methods it is
+    // positioned at the current frame and the pixel's first sample, so successive nextDouble()
+    // calls yield one value per sample.
+    protected Jitter jitter() {
+	return threadJitter.get();
     }
 
     @Override
@@ -61,29 +121,55 @@ public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implement
 	return Math.min((int)Math.ceil(samples), MAX_SUBSAMPLING);
     }
 
+    // Map all samples through 'tx'. While the transform is animating, the existing sample positions
+    // are just re-projected through the new transform; the sample set is only rebuilt from scratch
+    // when the number of samples may have changed (i.e., when animation starts or stops).
     public void applyTransform(PixelTransform tx) {
-        points_ir = new HashMap<LedPixel, ArrayList<PVector2>>();
-        int total_subsamples = 0;
-        for (LedPixel c : mesh.coords()) {
-            ArrayList<PVector2> samples = new ArrayList<PVector2>();
-            points_ir.put(c, samples);
-
-            PVector2 p = tx.transform(c);
-            int num_subsamples = numSubsamples(p);
-            boolean jitter = (num_subsamples > 1);
-
-            for (int i = 0; i < num_subsamples; i++) {
-                PVector2 offset = (jitter ?
-				   LayoutUtil.polarToXy(LayoutUtil.V(
-				    Math.random() * mesh.getPixelBufferRadius(),
-				    Math.random() * 2*Math.PI
-                                  )) :
-                                  LayoutUtil.V(0, 0));
-                PVector2 sample = tx.transform(c, LayoutUtil.Vadd(c.toXY(), offset));
-                samples.add(toIntermediateRepresentation(sample));
-            }
+        if (sampleXs != null && transformIsAnimating && samplesAnimating) {
+            reprojectSamples(tx);
+            return;
+        }
+        samplesAnimating = transformIsAnimating;
+
+        List<? extends LedPixel> coords = mesh.coords();
+        float[] centerXs = new float[coords.size()];
+        float[] centerYs = new float[coords.size()];
+        tx.transform(coords, null, mesh.getPixelXs(), mesh.getPixelYs(), centerXs, centerYs);
+        int[] offsets = new int[coords.size() + 1];
+        for (int i = 0; i < coords.size(); i++) {
+            offsets[i + 1] = offsets[i] + numSubsamples(LayoutUtil.V(centerXs[i], centerYs[i]));
+        }
+        int total_subsamples = offsets[coords.size()];
+        float[] baseXs = new float[total_subsamples];
+        float[] baseYs = new float[total_subsamples];
 
-            total_subsamples += num_subsamples;
+        // Subsamples follow a precomputed stratified pattern covering the pixel's footprint, rotated
+        // by a per-pixel random angle. Frame -1 is reserved for the spatial layout; rendered frames
+        // count from 0.
+        double radius = mesh.getPixelBufferRadius();
+        float[] pixelXs = mesh.getPixelXs();
+        float[] pixelYs = mesh.getPixelYs();
+        for (int i = 0; i < coords.size(); i++) {
+            int num_subsamples = offsets[i + 1] - offsets[i];
+            double rotation = Jitter.uniform(jitterSeed, -1, i) * 2*Math.PI;
+            double cos = Math.cos(rotation);
+            double sin = Math.sin(rotation);
+
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                double px = SamplePattern.x(num_subsamples, k - offsets[i]);
+                double py = SamplePattern.y(num_subsamples, k - offsets[i]);
+                baseXs[k] = (float)(pixelXs[i] + radius * (px * cos - py * sin));
+                baseYs[k] = (float)(pixelYs[i] + radius * (px * sin + py * cos));
+            }
+        }
+        this.baseXs = baseXs;
+        this.baseYs = baseYs;
+        sampleXs = new float[total_subsamples];
+        sampleYs = new float[total_subsamples];
+        sampleOffsets = offsets;
+        reprojectSamples(tx);
+        if (jitterTableFrames > 0) {
+            initJitter();
         }
 
         System.out.println(String.format("%d subsamples for %d pixels (%.1f samples/pixel)",
@@ -94,6 +180,35 @@ public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implement
         }
     }
 
+    // Map each sample's base (mesh-space) position through 'tx' into its intermediate representation.
+    private void reprojectSamples(PixelTransform tx) {
+        tx.transform(mesh.coords(), sampleOffsets, baseXs, baseYs, sampleXs, sampleYs);
+        toIntermediateRepresentation(sampleXs, sampleYs, 0, sampleXs.length);
+    }
+
+    // Sample store accessors. Samples are identified by a global index k; those for the pixel with
+    // ordinal i are sampleStart(i) <= k < sampleEnd(i).
+    protected final int numSamples() {
+        return sampleXs.length;
+    }
+
+    protected final int sampleStart(int ordinal) {
+        return sampleOffsets[ordinal];
+    }
+
+    protected final int sampleEnd(int ordinal) {
+        return sampleOffsets[ordinal + 1];
+    }
+
+    // Coordinates of sample k (in intermediate representation)
+    protected final float sampleX(int k) {
+        return sampleXs[k];
+    }
+
+    protected final float sampleY(int k) {
+        return sampleYs[k];
+    }
+
     public void broadcastTransform(PixelTransform tx) {
         InputControl.TransformJson txinfo = new InputControl.TransformJson();
         for (LedPixel reprPx : mesh.representativePixelsForTransform()) {
@@ -108,22 +223,41 @@ public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implement
         ctrl.broadcastTransform(txinfo);
     }
 
+    @Override
+    protected void drawFrame(int[] out, FrameContext ctx) {
+        jitterFrame = ctx.getFrame();
+        super.drawFrame(out, ctx);
+    }
+
     @Override
     protected int drawPixel(LedPixel c, double t) {
-        ArrayList<PVector2> sub = points_ir.get(c);
+        int start = sampleStart(c.ordinal);
+        int end = sampleEnd(c.ordinal);
+        jitter().seek(jitterFrame, start);
 
-        int[] samples = new int[sub.size()];
-        for (int i = 0; i < sub.size(); i++) {
-            samples[i] = samplePoint(sub.get(i), t);
+        long acc = 0;
+        for (int k = start; k < end; k++) {
+            acc = OpcColor.accumulate(acc, samplePoint(k, t));
         }
-        return OpcColor.blend(samples);
+        return OpcColor.average(acc, end - start);
+    }
+
+    // Render sample k of the sample store. The default implementation loads the sample's coordinates
+    // into a PVector2 and calls samplePoint(PVector2, double); override this instead to sample
+    // straight from sampleX(k)/sampleY(k) without the indirection.
+    protected int samplePoint(int k, double t) {
+        PVector2 p = threadSamplePoint.get();
+        p.x = sampleXs[k];
+        p.y = sampleYs[k];
+        return samplePoint(p, t);
     }
 
-    // Render an individual sample. 't' is clock time. Default implementation redirects to the
+    // Render an individual sample. 't' is clock time. 'ir' is reused for the next sample, so don't
+    // keep a reference to it (copy it if needed). Default implementation redirects to the
     // motion blur version, but override this function rather than that one if you don't care about
     // that.
     protected int samplePoint(PVector2 ir, double t) {
-	double temporal_jitter = (Math.random() - .5) / frameRate;
+	double temporal_jitter = (jitter().nextDouble() - .5) / frameRate;
 	return samplePointWithMotionBlur(ir, t + temporal_jitter, temporal_jitter);
     }
 
@@ -148,4 +282,25 @@ public abstract class XYAnimation extends PixelMeshAnimation<LedPixel> implement
         return p;
     }
 
+    // Convert points start through end-1 of xs/ys to their intermediate representation, in place
+    protected void toIntermediateRepresentation(float[] xs, float[] ys, int start, int end) {
+        Affine m = new Affine();
+        if (concatIntermediateAffine(m)) {
+            m.map(xs, ys, xs, ys, start, end);
+            return;
+        }
+        for (int k = start; k < end; k++) {
+            PVector2 p = toIntermediateRepresentation(LayoutUtil.V(xs[k], ys[k]));
+            xs[k] = p.x;
+            ys[k] = p.y;
+        }
+    }
+
+    // **OVERRIDE** (optional, alongside toIntermediateRepresentation())
+    // If the intermediate representation is an affine function of the xy point, apply it after the
+    // mapping already in 'm' and return true, so samples can be mapped with a single matrix.
+    protected boolean concatIntermediateAffine(Affine m) {
+        return false;
+    }
+
 }
@@ -12,9 +12,20 @@ public class Dome extends PixelMesh<DomePixel> {
     
     // Size of single panel's pixel grid.
     public static final int PANEL_SIZE = 15;
+    // Bump whenever a change to the layout code changes the generated pixels, so compiled layouts of
+    // the old geometry are regenerated
+    static final int GEOMETRY_VERSION = 1;
 
     DomeLayoutUtil.PanelConfig config;
 
+    // Universal coordinate (packed; see PackedTriCoord) of each pixel, by ordinal
+    private long[] universals;
+    // Ordinal of the pixel at each universal coordinate within the layout's bounding box, or -1:
+    // index ((u - minU) * spanV + (v - minV)) * 2 + orientation (w follows from u, v and the
+    // orientation)
+    private int[] ordinalTable;
+    private int minU, minV, spanU, spanV;
+
     public Dome(OPC opc) {
         this(Config.getConfig().numPanels, opc);
     }
@@ -28,7 +39,62 @@ public class Dome extends PixelMesh<DomePixel> {
 	super();
 	opcs.add(opc);
 	config = DomeLayoutUtil.getPanelConfig(layout);
-	init();
+	init(config);
+	initLookupTables();
+    }
+
+    private void initLookupTables() {
+	List<DomePixel> pixels = coords();
+	universals = new long[pixels.size()];
+	int maxU = Integer.MIN_VALUE;
+	int maxV = Integer.MIN_VALUE;
+	minU = Integer.MAX_VALUE;
+	minV = Integer.MAX_VALUE;
+	for (DomePixel px : pixels) {
+	    universals[px.ordinal] = px.universal.pack();
+	    minU = Math.min(minU, px.universal.u);
+	    minV = Math.min(minV, px.universal.v);
+	    maxU = Math.max(maxU, px.universal.u);
+	    maxV = Math.max(maxV, px.universal.v);
+	}
+	spanU = maxU - minU + 1;
+	spanV = maxV - minV + 1;
+	ordinalTable = new int[2 * spanU * spanV];
+	Arrays.fill(ordinalTable, -1);
+	for (int i = 0; i < universals.length; i++) {
+	    ordinalTable[tableIndex(universals[i])] = i;
+	}
+    }
+
+    private int tableIndex(long universal) {
+	int u = PackedTriCoord.u(universal) - minU;
+	int v = PackedTriCoord.v(universal) - minV;
+	if (u < 0 || u >= spanU || v < 0 || v >= spanV) {
+	    return -1;
+	}
+	return 2 * (u * spanV + v) + PackedTriCoord.orientation(universal).ordinal();
+    }
+
+    // Packed universal coordinate of the pixel with the given ordinal
+    public long getUniversal(int ordinal) {
+	return universals[ordinal];
+    }
+
+    // Ordinal of the pixel at the given packed universal coordinate, or -1 if there's no pixel
+    // there -- a table lookup, for lattice effects that visit neighboring pixels every frame
+    public int ordinalAt(long universal) {
+	if (PackedTriCoord.type(universal) != TriCoord.CoordType.UNIVERSAL) {
+	    throw new IllegalArgumentException("not a universal coordinate: " + PackedTriCoord.toString(universal));
+	}
+	int i = tableIndex(universal);
+	return i >= 0 ? ordinalTable[i] : -1;
+    }
+
+    public int ordinalAt(TriCoord universal) {
+	if (universal.type != TriCoord.CoordType.UNIVERSAL) {
+	    throw new IllegalArgumentException("not a universal coordinate: " + universal);
+	}
+	return ordinalAt(universal.pack());
     }
 
     protected List<DomePixel> getCoords() {
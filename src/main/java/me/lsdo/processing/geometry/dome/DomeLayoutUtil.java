@@ -1,6 +1,8 @@
 package me.lsdo.processing.geometry.dome;
 
 import java.util.*;
+import me.lsdo.processing.CompiledLayoutSource;
+import me.lsdo.processing.LedPixel;
 import me.lsdo.processing.PixelTransform;
 import me.lsdo.processing.util.*;
 
@@ -120,14 +122,17 @@ public class DomeLayoutUtil {
         return axialToXy(LayoutUtil.Vadd(root, LayoutUtil.Vmult(LayoutUtil.Vadd(px, offset), spacing)));
     }
 
-    // All metadata associated with a particular layout of panels.
-    public static abstract class PanelConfig {
+    // All metadata associated with a particular layout of panels. Also the source of the layout's
+    // compiled form (see CompiledLayout), with Dome.PANEL_SIZE pixels per panel side.
+    public static abstract class PanelConfig implements CompiledLayoutSource<DomePixel> {
+        int numPanels;
         double radius;  // Max radius of panel configuration, in panel lengths
         int[] arms;     // Number of panels per fadecandy 'arm'
         PVector2 origin; // Center the layout on this point (in UV coordinates)
 	PVector2 offset; // Origin in XY coordinates
 
         public PanelConfig(int num_panels, double radius, int[] arms, PVector2 origin) {
+            this.numPanels = num_panels;
             this.radius = radius;
             this.arms = arms;
             this.origin = origin;
@@ -143,11 +148,50 @@ public class DomeLayoutUtil {
         // Fill the me.lsdo configuration with pixels
         abstract ArrayList<DomePixel> fill(int n);
 
+        public List<DomePixel> getCoords() {
+            return fill(Dome.PANEL_SIZE);
+        }
+
+        public String getCompiledLayoutName() {
+            return String.format("lsdome_%dpanel.layout", numPanels);
+        }
+
+        public String getLayoutSourceKey() {
+            return String.format("lsdome panels=%d panel_size=%d version=%d", numPanels, Dome.PANEL_SIZE, Dome.GEOMETRY_VERSION);
+        }
+
+        public int getOpcChannel(DomePixel pixel) {
+            return 0;
+        }
+
+        // compiled layout ids are the universal coordinate
+        public DomePixel pixelFromLayout(CompiledLayout layout, int i) {
+            TriCoord universal = new TriCoord(TriCoord.CoordType.UNIVERSAL, layout.id(i, 0), layout.id(i, 1), layout.id(i, 2));
+            DomePixel px = new DomePixel(universal, Dome.PANEL_SIZE);
+            px.xy = LayoutUtil.V(layout.x(i), layout.y(i));
+            return px;
+        }
+
+        public void getLayoutIds(DomePixel pixel, int[] ids, int offset) {
+            ids[offset] = pixel.universal.u;
+            ids[offset + 1] = pixel.universal.v;
+            ids[offset + 2] = pixel.universal.w;
+        }
+
 	PixelTransform getDefaultTransform() {
 	    return new PixelTransform() {
 		    public PVector2 transform(PVector2 p) {
 			return LayoutUtil.Vmult(LayoutUtil.Vsub(p, offset), 1. / radius);
 		    }
+
+		    public boolean concatAffine(LedPixel px, Affine m) {
+			m.translate(-offset.x, -offset.y).scale(1. / radius, 1. / radius);
+			return true;
+		    }
+
+		    public boolean isPixelIndependent() {
+			return true;
+		    }
 		};
 	}
     }
@@ -266,6 +310,15 @@ public class DomeLayoutUtil {
         }
     }
 
+    // Every supported layout
+    public static List<PanelConfig> getPanelConfigs() {
+        List<PanelConfig> configs = new ArrayList<PanelConfig>();
+        for (PanelLayout layout : PanelLayout.values()) {
+            configs.add(getPanelConfig(layout));
+        }
+        return configs;
+    }
+
     // Convert a 2-vector of (U, V) coordinates from the axial coordinate scheme into (x, y) cartesian coordinates
     public static PVector2 axialToXy(PVector2 p) {
         PVector2 U = V(.5, .5 * SQRT_3);
@@ -16,6 +16,9 @@ public class DomePixel extends LedPixel {
     // and a within-panel pixel component.
     public TriCoord pixel;
 
+    // xy position, computed on first use (or loaded from a compiled layout)
+    PVector2 xy;
+
     public DomePixel(TriCoord uni, int panel_length) {
         universal = uni;
         panel = TriCoord.toPanel(uni, panel_length);
@@ -38,7 +41,10 @@ public class DomePixel extends LedPixel {
     }
 
     protected PVector2 _toXY() {
-	return DomeLayoutUtil.coordToXy(this);
+	if (xy == null) {
+	    xy = DomeLayoutUtil.coordToXy(this);
+	}
+	return xy;
     }
 
     public boolean equals(Object o) {
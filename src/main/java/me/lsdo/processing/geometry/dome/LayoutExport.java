@@ -3,27 +3,48 @@ package me.lsdo.processing.geometry.dome;
 import java.util.*;
 import java.io.*;
 import processing.data.*;
+import me.lsdo.processing.CompiledLayoutSource;
+import me.lsdo.processing.geometry.prometheus.Prometheus;
 import me.lsdo.processing.util.*;
 
-// Utility class to dump the various panel layouts to json format readable by the OPC simulator.
+// Utility class to dump the various panel layouts to json format readable by the OPC simulator, or,
+// given a directory, to compile them (see CompiledLayout) into that directory for fast startup.
+// Point the 'layout_cache' config property at the directory to use the compiled layouts.
 
 // To run:
-// java -cp library/lsdome.jar:$HOME/processing-3.3.7/core/library/core.jar me.lsdo.processing.geometry.dome.LayoutExport
+// java -cp library/lsdome.jar:$HOME/processing-3.3.7/core/library/core.jar me.lsdo.processing.geometry.dome.LayoutExport [compiled layout dir]
 
 public class LayoutExport {
 
-    public static void main(String[] args) {
-	exportLayoutsForSimulator();
+    public static void main(String[] args) throws IOException {
+	if (args.length > 0) {
+	    exportCompiledLayouts(new File(args[0]));
+	} else {
+	    exportLayoutsForSimulator();
+	}
+    }
+
+    // Compile every dome layout, plus the prometheus layout if that's the configured geometry
+    public static void exportCompiledLayouts(File dir) throws IOException {
+	dir.mkdirs();
+	List<CompiledLayoutSource<?>> sources = new ArrayList<CompiledLayoutSource<?>>();
+	sources.addAll(DomeLayoutUtil.getPanelConfigs());
+	if ("prometheus".equals(Config.getConfig().geomType)) {
+	    sources.add(new Prometheus.WingLayout());
+	}
+	for (CompiledLayoutSource<?> source : sources) {
+	    System.out.println("compiled " + CompiledLayout.compile(source, dir));
+	}
     }
 
     public static void exportLayoutsForSimulator() {
 	for (PanelLayout layout : PanelLayout.values()) {
 	    String layoutName = layout.name().substring(1);
-	    Dome dome = new Dome(layout, null);
+	    List<DomePixel> coords = DomeLayoutUtil.getPanelConfig(layout).getCoords();
 	    
 	    JSONArray values = new JSONArray();
-	    for (int i = 0; i < dome.coords().size(); i++) {
-		PVector2 xy = dome.coords().get(i).toXY();
+	    for (int i = 0; i < coords.size(); i++) {
+		PVector2 xy = coords.get(i).toXY();
 		float[] coordinates = {xy.x, xy.y, 0f};
 		JSONObject point = new JSONObject();
 		point.setJSONArray("point", new JSONArray(new FloatList(coordinates)));
@@ -0,0 +1,165 @@
+package me.lsdo.processing.geometry.dome;
+
+import me.lsdo.processing.util.*;
+
+// TriCoord packed into a single long, with static versions of TriCoord's operations that work on
+// the packed form without allocating -- for code that handles lots of coordinates per frame (e.g.,
+// lattice effects walking pixel neighborhoods). Packed coordinates compare equal as longs exactly
+// when the TriCoords are equal (for the same panel length), so they can be used directly as keys.
+//
+// Bit layout:
+//   0-15   u (signed)
+//   16-31  v (signed)
+//   32-47  w (signed)
+//   48-55  panel length (0 except for PIXEL coordinates)
+//   56-57  coordinate type (TriCoord.CoordType ordinal)
+//   58     orientation (1 for PanelOrientation.B)
+
+public class PackedTriCoord {
+
+    private static final TriCoord.CoordType[] types = TriCoord.CoordType.values();
+
+    private PackedTriCoord() {}
+
+    public static long pack(TriCoord.CoordType type, int u, int v, int w, int panel_length) {
+	assert u == (short)u && v == (short)v && w == (short)w : String.format("%d %d %d out of 16-bit range", u, v, w);
+	assert panel_length >= 0 && panel_length <= 0xff : "panel length out of 8-bit range: " + panel_length;
+	int sum = u + v + w;
+	boolean orientationB = (sum == TriCoord.checksum(TriCoord.PanelOrientation.B, panel_length));
+	assert orientationB || sum == TriCoord.checksum(TriCoord.PanelOrientation.A, panel_length) : String.format("%d %d %d", u, v, w);
+	return (u & 0xffffL)
+	    | (v & 0xffffL) << 16
+	    | (w & 0xffffL) << 32
+	    | (long)panel_length << 48
+	    | (long)type.ordinal() << 56
+	    | (orientationB ? 1L << 58 : 0);
+    }
+
+    public static long pack(TriCoord c) {
+	return pack(c.type, c.u, c.v, c.w, c.panel_length);
+    }
+
+    public static TriCoord unpack(long c) {
+	return new TriCoord(type(c), u(c), v(c), w(c), panelLength(c));
+    }
+
+    public static int u(long c) {
+	return (short)c;
+    }
+
+    public static int v(long c) {
+	return (short)(c >> 16);
+    }
+
+    public static int w(long c) {
+	return (short)(c >> 32);
+    }
+
+    public static int panelLength(long c) {
+	return (int)(c >> 48) & 0xff;
+    }
+
+    public static TriCoord.CoordType type(long c) {
+	return types[(int)(c >> 56) & 0x3];
+    }
+
+    public static TriCoord.PanelOrientation orientation(long c) {
+	return ((c >> 58) & 1) == 0 ? TriCoord.PanelOrientation.A : TriCoord.PanelOrientation.B;
+    }
+
+    public static int getAxis(long c, TriCoord.Axis ax) {
+	switch (ax) {
+	case U:
+	    return u(c);
+	case V:
+	    return v(c);
+	case W:
+	    return w(c);
+	default:
+	    throw new RuntimeException();
+	}
+    }
+
+    // See TriCoord.fromParts()
+    public static long fromParts(TriCoord.CoordType type, TriCoord.Axis axis1, int val1, TriCoord.Axis axis2, int val2,
+				 TriCoord.PanelOrientation o, int panel_length) {
+	assert axis1 != axis2;
+	int third = TriCoord.checksum(o, panel_length) - val1 - val2;
+	int u = (axis1 == TriCoord.Axis.U ? val1 : axis2 == TriCoord.Axis.U ? val2 : third);
+	int v = (axis1 == TriCoord.Axis.V ? val1 : axis2 == TriCoord.Axis.V ? val2 : third);
+	int w = (axis1 == TriCoord.Axis.W ? val1 : axis2 == TriCoord.Axis.W ? val2 : third);
+	return pack(type, u, v, w, panel_length);
+    }
+
+    // See TriCoord.rotate()
+    public static long rotate(long c, int rot) {
+	int panel_length = panelLength(c);
+	boolean invert = (MathUtil.mod(rot, 2) == 1);
+	if (invert) {
+	    rot -= 3;
+	}
+	int axis_shift = MathUtil.mod(rot, 6) / 2;
+
+	TriCoord.Axis newAx1 = TriCoord.axes[(TriCoord.Axis.U.ordinal() + axis_shift) % 3];
+	TriCoord.Axis newAx2 = TriCoord.axes[(TriCoord.Axis.V.ordinal() + axis_shift) % 3];
+	int newVal1 = (invert ? panel_length - 1 - u(c) : u(c));
+	int newVal2 = (invert ? panel_length - 1 - v(c) : v(c));
+	TriCoord.PanelOrientation newO = TriCoord.orientations[(orientation(c).ordinal() + (invert ? 1 : 0)) % 2];
+	return fromParts(type(c), newAx1, newVal1, newAx2, newVal2, newO, panel_length);
+    }
+
+    // See TriCoord.flip()
+    public static long flip(long c, TriCoord.Axis axis) {
+	TriCoord.CoordType type = type(c);
+	TriCoord.PanelOrientation o = orientation(c);
+	int panel_length = panelLength(c);
+	switch (axis) {
+	case U:
+	    return fromParts(type, TriCoord.Axis.U, u(c), TriCoord.Axis.V, w(c), o, panel_length);
+	case V:
+	    return fromParts(type, TriCoord.Axis.V, v(c), TriCoord.Axis.W, u(c), o, panel_length);
+	case W:
+	    return fromParts(type, TriCoord.Axis.W, w(c), TriCoord.Axis.U, v(c), o, panel_length);
+	default:
+	    throw new RuntimeException();
+	}
+    }
+
+    public static long toUniversal(long panel, long pixel) {
+	assert type(panel) == TriCoord.CoordType.PANEL;
+	assert type(pixel) == TriCoord.CoordType.PIXEL;
+	int n = panelLength(pixel);
+	return pack(TriCoord.CoordType.UNIVERSAL,
+		    n * u(panel) + u(pixel),
+		    n * v(panel) + v(pixel),
+		    n * w(panel) + w(pixel),
+		    0);
+    }
+
+    public static long toPanel(long uni, int panel_length) {
+	assert type(uni) == TriCoord.CoordType.UNIVERSAL;
+	return pack(TriCoord.CoordType.PANEL,
+		    floorDiv(u(uni), panel_length),
+		    floorDiv(v(uni), panel_length),
+		    floorDiv(w(uni), panel_length),
+		    0);
+    }
+
+    public static long toPixel(long uni, int panel_length) {
+	assert type(uni) == TriCoord.CoordType.UNIVERSAL;
+	return pack(TriCoord.CoordType.PIXEL,
+		    MathUtil.mod(u(uni), panel_length),
+		    MathUtil.mod(v(uni), panel_length),
+		    MathUtil.mod(w(uni), panel_length),
+		    panel_length);
+    }
+
+    private static int floorDiv(int a, int b) {
+	return (a - MathUtil.mod(a, b)) / b;
+    }
+
+    public static String toString(long c) {
+	return String.format("<u:%d v:%d w:%d o:%s>", u(c), v(c), w(c), (orientation(c) == TriCoord.PanelOrientation.A ? "A" : "B"));
+    }
+
+}
@@ -193,7 +193,13 @@ public class TriCoord {
         return new TriCoord(CoordType.PIXEL,
                 MathUtil.mod(uni.u, panel_length),
                 MathUtil.mod(uni.v, panel_length),
-                MathUtil.mod(uni.w, panel_length));
+                MathUtil.mod(uni.w, panel_length),
+                panel_length);
+    }
+
+    // This coordinate in PackedTriCoord form
+    public long pack() {
+        return PackedTriCoord.pack(this);
     }
 
     PVector2 toV() {
@@ -223,7 +229,8 @@ public class TriCoord {
     }
 
     public int hashCode() {
-        return Objects.hash(type, u, v, w);
+        // same mixing as Objects.hash(), without boxing every component
+        return 31 * (31 * (31 * (31 + type.hashCode()) + u) + v) + w;
     }
 
     public String toString() {
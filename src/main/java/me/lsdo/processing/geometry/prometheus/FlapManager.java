@@ -60,9 +60,14 @@ public class FlapManager {
 		public void onSet() {
 		    double angle = getInternal();
 
+		    double cos = Math.cos(angle);
+		    double sin = Math.sin(angle);
+		    float[] xs = mesh.getPixelXs();
+		    float[] ys = mesh.getPixelYs();
 		    double min = Double.POSITIVE_INFINITY;
-		    for (LedPixel px : mesh.coords()) {
-			double x = LayoutUtil.Vrot(px.toXY(), angle).x;
+		    for (int i = 0; i < xs.length; i++) {
+			// x-coordinate of the pixel rotated by 'angle'
+			double x = xs[i] * cos - ys[i] * sin;
 			min = Math.min(min, x);
 		    }
 		    flapOrigin = min - flapVanishingPointOffset;
@@ -108,6 +113,19 @@ public class FlapManager {
 		    return p;
 		}
 	    }
+
+	    public boolean concatAffine(LedPixel px, Affine m) {
+		if (flapLevel != 1.) {
+		    m.rotate(flapAngle.getInternal())
+			.translate(-flapOrigin, 0).scale(1. / Math.max(flapLevel, .01), 1.).translate(flapOrigin, 0)
+			.rotate(-flapAngle.getInternal());
+		}
+		return true;
+	    }
+
+	    public boolean isPixelIndependent() {
+		return true;
+	    }
 	};
     }
 
@@ -4,6 +4,7 @@ import java.util.*;
 import java.io.*;
 import com.google.gson.*;
 import com.google.gson.stream.*;
+import me.lsdo.processing.CompiledLayoutSource;
 import me.lsdo.processing.LedPixel;
 import me.lsdo.processing.PixelMesh;
 import me.lsdo.processing.PixelMeshAnimation;
@@ -43,6 +44,42 @@ public class Prometheus extends PixelMesh<WingPixel> {
 	double[] point;
     }
 
+    // The wings' geometry, from the json layouts named by the config 'layout' property
+    public static class WingLayout implements CompiledLayoutSource<WingPixel> {
+	public List<WingPixel> getCoords() {
+	    return loadLayout();
+	}
+
+	public String getCompiledLayoutName() {
+	    return "prometheus.layout";
+	}
+
+	// the json layouts are identified by path, size and modification time
+	public String getLayoutSourceKey() {
+	    StringBuilder sb = new StringBuilder("prometheus");
+	    for (String layoutPath : Config.getConfig().layoutPaths) {
+		File f = new File(layoutPath);
+		sb.append(String.format(" %s:%d:%d", f.getAbsolutePath(), f.length(), f.lastModified()));
+	    }
+	    return sb.toString();
+	}
+
+	public int getOpcChannel(WingPixel pixel) {
+	    return pixel.wing;
+	}
+
+	// compiled layout ids are the wing and the index within the wing
+	public WingPixel pixelFromLayout(CompiledLayout layout, int i) {
+	    PVector2 xy = (layout.isSpacer(i) ? null : LayoutUtil.V(layout.x(i), layout.y(i)));
+	    return new WingPixel(layout.id(i, 0), layout.id(i, 1), xy);
+	}
+
+	public void getLayoutIds(WingPixel pixel, int[] ids, int offset) {
+	    ids[offset] = pixel.wing;
+	    ids[offset + 1] = pixel.i;
+	}
+    }
+
     public EnumParameter<WingDisplayMode> mode;
     private FlapManager flapper;
 
@@ -57,10 +94,14 @@ public class Prometheus extends PixelMesh<WingPixel> {
 	mode.verbose = true;
 	mode.init(mode.enumByName(Config.getSketchProperty("wing_mode", "unified")));
 
-	init();
+	init(new WingLayout());
     }
 
     protected List<WingPixel> getCoords() {
+	return loadLayout();
+    }
+
+    static List<WingPixel> loadLayout() {
         int NUM_WINGS = 2;
 	List<String> layoutPaths = Config.getConfig().layoutPaths;
 	if (layoutPaths.size() == 0) {
@@ -98,6 +139,14 @@ public class Prometheus extends PixelMesh<WingPixel> {
 		    }
 		    return LayoutUtil.Vmult(p, 2./WINGSPAN);
 		}
+
+		public boolean concatAffine(LedPixel px, Affine m) {
+		    if (mode.get() == WingDisplayMode.UNIFIED && ((WingPixel)px).wing == 1) {
+			m.scale(-1, 1);
+		    }
+		    m.scale(2./WINGSPAN, 2./WINGSPAN);
+		    return true;
+		}
 	    };
 
 	// Can't call this in the constructor because coords haven't been loaded yet, which affects the shape of the flap
@@ -122,10 +171,19 @@ public class Prometheus extends PixelMesh<WingPixel> {
 		}
 		return p;
 	    }
+
+	    public boolean concatAffine(LedPixel px, Affine m) {
+		if (((WingPixel)px).wing == 1) {
+		    if (mode.get() == WingDisplayMode.FLIP) {
+			m.scale(-1, 1);
+		    }
+		}
+		return true;
+	    }
 	};
     }
 
-    private List<PVector2> loadPixels(String path) throws IOException {
+    private static List<PVector2> loadPixels(String path) throws IOException {
 	Gson gson = new Gson();
 	InputStream is = new BufferedInputStream(new FileInputStream(new File(path)));
 	JsonReader reader = new JsonReader(new InputStreamReader(is, "UTF-8"));
@@ -215,7 +215,7 @@ public class InputControl {
 
     public void processInput() {
 	while (true) {
-	    String msg = subscriber.recvStr(ZMQ.NOBLOCK);
+	    String msg = receiveInput();
 	    if (msg == null) {
 		break;
 	    }
@@ -223,7 +223,12 @@ public class InputControl {
         }
     }
 
-    void processInputEvent(String msg) {
+    // Next pending input event, or null if there is none; apply it with processInputEvent()
+    public String receiveInput() {
+	return subscriber.recvStr(ZMQ.NOBLOCK);
+    }
+
+    public void processInputEvent(String msg) {
 	Gson gson = new Gson();
 	InputEvent evt;
 	try {
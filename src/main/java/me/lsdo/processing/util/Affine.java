@@ -0,0 +1,96 @@
+package me.lsdo.processing.util;
+
+// Mutable 2x3 affine matrix, mapping (x, y) to
+//   x' = a*x + b*y + tx
+//   y' = c*x + d*y + ty
+// The translate/scale/rotate operations apply *after* the existing mapping (i.e., they
+// left-multiply), so a chain of transforms is built up in the order the transforms are applied.
+// Everything works in place so matrices can be reused without allocating.
+
+public class Affine {
+
+    public double a, b, c, d, tx, ty;
+
+    public Affine() {
+	setIdentity();
+    }
+
+    public Affine setIdentity() {
+	return set(1, 0, 0, 1, 0, 0);
+    }
+
+    public Affine set(double a, double b, double c, double d, double tx, double ty) {
+	this.a = a;
+	this.b = b;
+	this.c = c;
+	this.d = d;
+	this.tx = tx;
+	this.ty = ty;
+	return this;
+    }
+
+    public Affine set(Affine m) {
+	return set(m.a, m.b, m.c, m.d, m.tx, m.ty);
+    }
+
+    public Affine translate(double dx, double dy) {
+	tx += dx;
+	ty += dy;
+	return this;
+    }
+
+    public Affine scale(double sx, double sy) {
+	a *= sx;
+	b *= sx;
+	tx *= sx;
+	c *= sy;
+	d *= sy;
+	ty *= sy;
+	return this;
+    }
+
+    // Rotate counter-clockwise by theta radians (same sense as LayoutUtil.Vrot)
+    public Affine rotate(double theta) {
+	double cos = Math.cos(theta);
+	double sin = Math.sin(theta);
+	return concat(cos, -sin, sin, cos, 0, 0);
+    }
+
+    // Apply the given mapping after this one
+    public Affine concat(double a2, double b2, double c2, double d2, double tx2, double ty2) {
+	return set(a2*a + b2*c, a2*b + b2*d,
+		   c2*a + d2*c, c2*b + d2*d,
+		   a2*tx + b2*ty + tx2, c2*tx + d2*ty + ty2);
+    }
+
+    public Affine concat(Affine m) {
+	return concat(m.a, m.b, m.c, m.d, m.tx, m.ty);
+    }
+
+    public double mapX(double x, double y) {
+	return a*x + b*y + tx;
+    }
+
+    public double mapY(double x, double y) {
+	return c*x + d*y + ty;
+    }
+
+    public PVector2 map(PVector2 p) {
+	return LayoutUtil.V(mapX(p.x, p.y), mapY(p.x, p.y));
+    }
+
+    // Map points start through end-1 of xs/ys into outXs/outYs (which may be the same arrays)
+    public void map(float[] xs, float[] ys, float[] outXs, float[] outYs, int start, int end) {
+	for (int k = start; k < end; k++) {
+	    double x = xs[k];
+	    double y = ys[k];
+	    outXs[k] = (float)(a*x + b*y + tx);
+	    outYs[k] = (float)(c*x + d*y + ty);
+	}
+    }
+
+    public String toString() {
+	return String.format("[%f %f %f; %f %f %f]", a, b, tx, c, d, ty);
+    }
+
+}
@@ -0,0 +1,99 @@
+package me.lsdo.processing.util;
+
+/**
+ * Per-channel 256-entry color lookup table. Any chain of per-channel adjustments (brightness/contrast,
+ * luminance scaling, gamma, white point) can be folded into one table when its parameters change,
+ * and then applied to every pixel with three array lookups.
+ */
+public class ColorLut {
+
+    // A per-channel transfer function on 0-255 values
+    public static interface Curve {
+        // channel: 0 = red, 1 = green, 2 = blue
+        public int apply(int channel, int value);
+    }
+
+    private final int[][] tables = new int[3][256];
+    private boolean identity;
+
+    public ColorLut() {
+        reset();
+    }
+
+    // Reset to the identity mapping
+    public void reset() {
+        for (int[] table : tables) {
+            for (int v = 0; v < 256; v++) {
+                table[v] = v;
+            }
+        }
+        identity = true;
+    }
+
+    // Apply 'curve' after the mapping already in the table
+    public void compose(Curve curve) {
+        for (int ch = 0; ch < 3; ch++) {
+            int[] table = tables[ch];
+            for (int v = 0; v < 256; v++) {
+                int mapped = Math.min(Math.max(curve.apply(ch, table[v]), 0), 255);
+                if (mapped != table[v]) {
+                    identity = false;
+                }
+                table[v] = mapped;
+            }
+        }
+    }
+
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    public int map(int color) {
+        return OpcColor.A_MASK | (tables[0][(color >> 16) & 0xFF] << 16) | (tables[1][(color >> 8) & 0xFF] << 8) | tables[2][color & 0xFF];
+    }
+
+    // Map 'in' into 'out' (may be the same array)
+    public void apply(int[] in, int[] out) {
+        for (int i = 0; i < in.length; i++) {
+            out[i] = map(in[i]);
+        }
+    }
+
+    // Same as OpcColor.brightnessContrast()
+    public static Curve brightnessContrast(final double brightness, final double contrast) {
+        return new Curve() {
+            public int apply(int channel, int value) {
+                return OpcColor.getBlue(OpcColor.brightnessContrast(OpcColor.getRgbColor(value, value, value), brightness, contrast));
+            }
+        };
+    }
+
+    // Same as OpcColor.scaleBrightness()
+    public static Curve scaleBrightness(final double maxBrightness) {
+        return new Curve() {
+            public int apply(int channel, int value) {
+                return OpcColor.getBlue(OpcColor.scaleBrightness(OpcColor.getRgbColor(value, value, value), maxBrightness));
+            }
+        };
+    }
+
+    // Software gamma correction, for OPC servers that don't do their own
+    public static Curve gamma(final double gamma) {
+        return new Curve() {
+            public int apply(int channel, int value) {
+                return (int)Math.round(255. * Math.pow(value / 255., gamma));
+            }
+        };
+    }
+
+    // Software white point: scale each channel by the given factor in [0, 1]
+    public static Curve whitepoint(final double red, final double green, final double blue) {
+        return new Curve() {
+            public int apply(int channel, int value) {
+                double k = (channel == 0 ? red : channel == 1 ? green : blue);
+                return (int)Math.round(value * k);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,186 @@
+package me.lsdo.processing.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.List;
+import me.lsdo.processing.*;
+
+// A mesh's pixel layout compiled to a compact binary file, so the mesh can be loaded at startup
+// with a single memory-mapped read instead of being generated or parsed from scratch. Compiled from
+// a CompiledLayoutSource by LayoutExport; see PixelMesh.init(CompiledLayoutSource) for how meshes
+// use it.
+//
+// File layout (all values little-endian):
+//   0  int    magic, the bytes "LSLC"
+//   4  int    format version
+//   8  int    number of pixels (including spacer pixels), in OPC order
+//   12 int    length of the source key in bytes
+//   16        source key (UTF-8), padded with zeros to a multiple of 4 bytes
+//   then one 28-byte record per pixel:
+//      float  x (NaN for spacer pixels)
+//      float  y
+//      int    flags (bit 0: spacer pixel)
+//      int    OPC channel
+//      int[3] native ids, meaning up to the mesh (e.g., the dome's universal u/v/w)
+//
+// The source key identifies what the layout was compiled from (layout name, source file
+// modification time, generator version, ...); a layout whose key doesn't match the mesh's current
+// one is stale and ignored.
+
+public class CompiledLayout {
+
+    public static final int MAGIC = 0x434c534c;  // "LSLC"
+    public static final int VERSION = 1;
+    public static final int NUM_IDS = 3;
+
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 28;
+    static final int FLAG_SPACER = 0x1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buf;
+    private final int size;
+    private final int recordStart;
+
+    private CompiledLayout(ByteBuffer buf, int size, int recordStart) {
+	this.buf = buf;
+	this.size = size;
+	this.recordStart = recordStart;
+    }
+
+    // Map the compiled layout at 'file'. Returns null if it doesn't exist, is from a different
+    // format version, or was compiled from a source other than 'sourceKey'.
+    public static CompiledLayout load(File file, String sourceKey) throws IOException {
+	if (!file.exists()) {
+	    return null;
+	}
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    if (channel.size() < HEADER_SIZE) {
+		return null;
+	    }
+	    // the mapping stays valid after the channel is closed
+	    ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+	    if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+		return null;
+	    }
+	    int size = buf.getInt(8);
+	    int keyLength = buf.getInt(12);
+	    int recordStart = HEADER_SIZE + pad(keyLength);
+	    if (size < 0 || keyLength < 0 || recordStart + (long)size * RECORD_SIZE != channel.size()) {
+		return null;
+	    }
+	    byte[] key = new byte[keyLength];
+	    buf.position(HEADER_SIZE);
+	    buf.get(key);
+	    if (!new String(key, UTF8).equals(sourceKey)) {
+		return null;
+	    }
+	    return new CompiledLayout(buf, size, recordStart);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    // Write a compiled layout for the given pixels (see the accessors below for the arguments'
+    // meanings; ids holds NUM_IDS values per pixel). The file is replaced atomically.
+    public static void write(File file, String sourceKey, float[] xs, float[] ys, boolean[] spacer,
+			     int[] channels, int[] ids) throws IOException {
+	byte[] key = sourceKey.getBytes(UTF8);
+	int size = xs.length;
+	ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + pad(key.length) + size * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	buf.putInt(MAGIC);
+	buf.putInt(VERSION);
+	buf.putInt(size);
+	buf.putInt(key.length);
+	buf.put(key);
+	buf.position(HEADER_SIZE + pad(key.length));
+	for (int i = 0; i < size; i++) {
+	    buf.putFloat(spacer[i] ? Float.NaN : xs[i]);
+	    buf.putFloat(spacer[i] ? Float.NaN : ys[i]);
+	    buf.putInt(spacer[i] ? FLAG_SPACER : 0);
+	    buf.putInt(channels[i]);
+	    for (int k = 0; k < NUM_IDS; k++) {
+		buf.putInt(ids[NUM_IDS * i + k]);
+	    }
+	}
+	buf.flip();
+
+	File tmp = new File(file.getPath() + ".tmp");
+	FileOutputStream out = new FileOutputStream(tmp);
+	try {
+	    FileChannel channel = out.getChannel();
+	    while (buf.hasRemaining()) {
+		channel.write(buf);
+	    }
+	} finally {
+	    out.close();
+	}
+	if (!tmp.renameTo(file)) {
+	    file.delete();
+	    if (!tmp.renameTo(file)) {
+		throw new IOException("can't move compiled layout into place at " + file);
+	    }
+	}
+    }
+
+    // Generate the source's layout and compile it into 'dir'. Returns the file written.
+    public static <T extends LedPixel> File compile(CompiledLayoutSource<T> source, File dir) throws IOException {
+	List<T> pixels = source.getCoords();
+	int n = pixels.size();
+	float[] xs = new float[n];
+	float[] ys = new float[n];
+	boolean[] spacer = new boolean[n];
+	int[] channels = new int[n];
+	int[] ids = new int[NUM_IDS * n];
+	for (int i = 0; i < n; i++) {
+	    T c = pixels.get(i);
+	    spacer[i] = c.spacerPixel;
+	    if (!c.spacerPixel) {
+		PVector2 xy = c.toXY();
+		xs[i] = xy.x;
+		ys[i] = xy.y;
+	    }
+	    channels[i] = source.getOpcChannel(c);
+	    source.getLayoutIds(c, ids, NUM_IDS * i);
+	}
+	File file = new File(dir, source.getCompiledLayoutName());
+	write(file, source.getLayoutSourceKey(), xs, ys, spacer, channels, ids);
+	return file;
+    }
+
+    private static int pad(int n) {
+	return (n + 3) & ~3;
+    }
+
+    // Number of pixels, including spacer pixels
+    public int size() {
+	return size;
+    }
+
+    public float x(int i) {
+	return buf.getFloat(recordStart + i * RECORD_SIZE);
+    }
+
+    public float y(int i) {
+	return buf.getFloat(recordStart + i * RECORD_SIZE + 4);
+    }
+
+    public boolean isSpacer(int i) {
+	return (buf.getInt(recordStart + i * RECORD_SIZE + 8) & FLAG_SPACER) != 0;
+    }
+
+    public int channel(int i) {
+	return buf.getInt(recordStart + i * RECORD_SIZE + 12);
+    }
+
+    // Native id k (0 <= k < NUM_IDS) of pixel i
+    public int id(int i, int k) {
+	return buf.getInt(recordStart + i * RECORD_SIZE + 16 + 4 * k);
+    }
+
+}
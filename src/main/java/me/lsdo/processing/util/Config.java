@@ -16,14 +16,14 @@ public class Config {
     private Properties domeProps = new Properties();
     private Properties sketchProps = new Properties();
 
-    static long startMillis = -1;
+    private static class ClockStart {
+        static final long nanos = System.nanoTime();
+    }
 
+    // Seconds since the first call; monotonic (unaffected by wall clock adjustments)
     public static double clock() {
-	long now = System.currentTimeMillis();
-	if (startMillis == -1) {
-	    startMillis = now;
-	}
-	return (now - startMillis) / 1000.;
+	long start = ClockStart.nanos;
+	return (System.nanoTime() - start) / 1e9;
     }
 
     private static class ConfigInstance {
@@ -72,6 +72,15 @@ public class Config {
 	geomType = domeProps.getProperty("geometry", "");
 	zmqPortIn = getProperty(domeProps, "zmq_port_inbound", DEFAULT_ZMQ_IN_OUT[0]);
 	zmqPortOut = getProperty(domeProps, "zmq_port_outbound", DEFAULT_ZMQ_IN_OUT[1]);
+	opcChannelPixels = getProperty(domeProps, "opc_channel_pixels", OPC.MAX_PIXELS_PER_PACKET);
+	opcFirstChannel = getProperty(domeProps, "opc_first_channel", 1);
+	opcSplitServers = getProperty(domeProps, "opc_split_servers", 1);
+	opcServerPixels = getProperty(domeProps, "opc_server_pixels", opcChannelPixels);
+	opcKeepalive = getProperty(domeProps, "opc_keepalive", OPC.DEFAULT_KEEPALIVE);
+	layoutCacheDir = domeProps.getProperty("layout_cache", "");
+	if (layoutCacheDir.isEmpty()) {
+	    layoutCacheDir = null;
+	}
 
 	if (geomType.isEmpty()) {
 	    geomType = null;
@@ -136,16 +145,41 @@ public class Config {
     public String geomType;
     public int numPanels;
     public List<String> layoutPaths;
+    // directory holding compiled layouts (see CompiledLayout), or null to always generate the layout
+    public String layoutCacheDir;
     public int zmqPortIn;
     public int zmqPortOut;
-
+    // max pixels per OPC packet; larger buffers are split across consecutive OPC channels starting at opcFirstChannel
+    public int opcChannelPixels;
+    public int opcFirstChannel;
+    // number of consecutive OPC servers each mesh channel is spread across, each carrying up to
+    // opcServerPixels pixels (the last one takes the remainder)
+    public int opcSplitServers;
+    public int opcServerPixels;
+    // seconds between re-sends of an unchanged frame (<= 0 to send every frame)
+    public double opcKeepalive;
+
+    // Make the OPC connections for a mesh with 'n' OPC channels. Returns one OPC per mesh channel; if
+    // opc_split_servers > 1, each of these chains on to the additional servers for that channel. Servers
+    // are assigned in order from the opchostname list, then by incrementing port on the first host.
     public OPC[] makeOPCs(int n) {
 	OPC[] opcs = new OPC[n];
-	for (int i = 0; i < n; i++) {
+	int k = opcSplitServers;
+	for (int i = 0; i < n * k; i++) {
 	    OPC opc = (i < OpcHostname.size() ?
 		       new OPC(OpcHostname.get(i), OpcPort) :
 		       new OPC(OpcHostname.get(0), OpcPort + i - OpcHostname.size() + 1));
-	    opcs[i] = opc;
+	    opc.setChannelSplit(opcChannelPixels, opcFirstChannel);
+	    opc.setKeepalive(opcKeepalive);
+	    if (i % k == 0) {
+		opcs[i / k] = opc;
+	    } else {
+		OPC prev = opcs[i / k];
+		while (prev.getOverflow() != null) {
+		    prev = prev.getOverflow();
+		}
+		prev.setOverflow(opc, opcServerPixels);
+	    }
 	}
 	return opcs;
     }
@@ -0,0 +1,132 @@
+package me.lsdo.processing.util;
+
+/**
+ * Fixed-timestep frame scheduler built on System.nanoTime(). Frames are due on a fixed grid of
+ * 1/fps intervals. Waiting sleeps until shortly before the deadline, then spins the rest of the
+ * way, so frames start within microseconds of their deadline rather than whole milliseconds.
+ * Tracks how late each frame actually started (jitter) for diagnostics.
+ */
+public class FramePacer {
+
+    // What to do when rendering falls behind schedule
+    public static enum OverloadPolicy {
+        // run late frames back-to-back until caught up with the original schedule (up to
+        // MAX_CATCH_UP frames, after which the schedule is reset)
+        CATCH_UP("catchup"),
+        // drop the frames that were missed and resume at the next deadline on the grid
+        SKIP("skip");
+
+        // value of the 'frame_pacing' sketch property
+        public final String propertyValue;
+        OverloadPolicy(String propertyValue) {
+            this.propertyValue = propertyValue;
+        }
+
+        public static OverloadPolicy fromProperty(String value) {
+            for (OverloadPolicy p : values()) {
+                if (p.propertyValue.equals(value)) {
+                    return p;
+                }
+            }
+            throw new RuntimeException(String.format("property value for frame_pacing must be 'skip' or 'catchup'; is: %s", value));
+        }
+    }
+
+    public static final int MAX_CATCH_UP = 5;
+    // sleep until this long before the deadline, then spin
+    public static final long SPIN_NANOS = 2000000L;
+
+    private final long periodNanos;
+    private final OverloadPolicy policy;
+    private long nextDeadline = -1;
+
+    // jitter statistics, in nanoseconds (lateness of each frame start relative to its deadline)
+    private long frames = 0;
+    private long framesSkipped = 0;
+    private double meanJitter = 0;
+    private double m2Jitter = 0;
+    private long maxJitter = 0;
+
+    public FramePacer(double fps, OverloadPolicy policy) {
+        this.periodNanos = (long)(1e9 / fps);
+        this.policy = policy;
+    }
+
+    // Block until the next frame is due
+    public void waitForNextFrame() {
+        long now = System.nanoTime();
+        if (nextDeadline == -1) {
+            nextDeadline = now;
+        }
+
+        long behind = now - nextDeadline;
+        if (behind > periodNanos) {
+            long missed = behind / periodNanos;
+            if (policy == OverloadPolicy.SKIP || missed > MAX_CATCH_UP) {
+                nextDeadline += missed * periodNanos;
+                framesSkipped += missed;
+            }
+        }
+
+        waitUntil(nextDeadline);
+        recordJitter(System.nanoTime() - nextDeadline);
+        nextDeadline += periodNanos;
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > SPIN_NANOS) {
+            long sleepNanos = remaining - SPIN_NANOS;
+            try {
+                Thread.sleep(sleepNanos / 1000000L, (int)(sleepNanos % 1000000L));
+            } catch (InterruptedException ie) {
+            }
+        }
+        while (System.nanoTime() - deadline < 0) {
+            Thread.yield();
+        }
+    }
+
+    private void recordJitter(long jitter) {
+        // Welford's running mean/variance
+        frames++;
+        double delta = jitter - meanJitter;
+        meanJitter += delta / frames;
+        m2Jitter += delta * (jitter - meanJitter);
+        maxJitter = Math.max(maxJitter, jitter);
+    }
+
+    public void resetStats() {
+        frames = 0;
+        framesSkipped = 0;
+        meanJitter = 0;
+        m2Jitter = 0;
+        maxJitter = 0;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    // mean lateness of frame starts, in seconds
+    public double getMeanJitter() {
+        return meanJitter / 1e9;
+    }
+
+    public double getJitterStdDev() {
+        return frames > 1 ? Math.sqrt(m2Jitter / (frames - 1)) / 1e9 : 0.;
+    }
+
+    public double getMaxJitter() {
+        return maxJitter / 1e9;
+    }
+
+    public String toString() {
+        return String.format("%d frames, %d skipped; jitter mean %.3fms sd %.3fms max %.3fms",
+                             frames, framesSkipped, 1e3 * getMeanJitter(), 1e3 * getJitterStdDev(), 1e3 * getMaxJitter());
+    }
+}
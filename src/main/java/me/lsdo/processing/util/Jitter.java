@@ -0,0 +1,94 @@
+package me.lsdo.processing.util;
+
+// Deterministic source of sampling jitter, for use in place of Math.random(). Values are a pure
+// function of (seed, frame, index) -- a counter-based SplitMix64 hash -- so they are reproducible
+// from run to run and independent of which thread renders which pixel. Instances are cheap and
+// NOT thread-safe; give each rendering thread its own.
+//
+// Usage: seek() to the first index of interest, then read consecutive values with nextDouble().
+// Optionally, values can be served from a table precomputed with makeTable(), which yields exactly
+// the same values as computing them on the fly.
+
+public class Jitter {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+    private final double[][] table;
+
+    // state of the current stream
+    private long frameHash;
+    private int index;
+    private double[] row;
+
+    public Jitter(long seed) {
+	this(seed, null);
+    }
+
+    // 'table' as returned by makeTable() for the same seed; frames beyond the table's length wrap
+    // around to its start
+    public Jitter(long seed, double[][] table) {
+	this.seed = seed;
+	this.table = table;
+	seek(0, 0);
+    }
+
+    public long getSeed() {
+	return seed;
+    }
+
+    // Position the stream so the next value returned is for (frame, index)
+    public void seek(long frame, int index) {
+	this.frameHash = frameHash(seed, frame);
+	this.index = index;
+	this.row = null;
+	if (table != null && frame >= 0) {
+	    double[] r = table[(int)(frame % table.length)];
+	    if (index < r.length) {
+		this.row = r;
+	    }
+	}
+    }
+
+    // Next value in [0, 1)
+    public double nextDouble() {
+	int i = index++;
+	if (row != null && i < row.length) {
+	    return row[i];
+	}
+	return toDouble(mix(frameHash + i * GOLDEN_GAMMA));
+    }
+
+    // Value in [0, 1) for the given (seed, frame, index)
+    public static double uniform(long seed, long frame, int index) {
+	return toDouble(mix(frameHash(seed, frame) + index * GOLDEN_GAMMA));
+    }
+
+    // Precompute the values for 'frames' frames (0 through frames-1) of 'length' indexes each
+    public static double[][] makeTable(long seed, int frames, int length) {
+	double[][] table = new double[frames][length];
+	for (int f = 0; f < frames; f++) {
+	    long h = frameHash(seed, f);
+	    for (int i = 0; i < length; i++) {
+		table[f][i] = toDouble(mix(h + i * GOLDEN_GAMMA));
+	    }
+	}
+	return table;
+    }
+
+    private static long frameHash(long seed, long frame) {
+	return mix(seed + mix(frame * GOLDEN_GAMMA));
+    }
+
+    // SplitMix64 finalizer
+    public static long mix(long z) {
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
+    private static double toDouble(long z) {
+	return (z >>> 11) * 0x1.0p-53;
+    }
+
+}
@@ -60,6 +60,15 @@ public class LayoutUtil {
             public PVector2 transform(PVector2 p) {
                 return Vadd(p, offset);
             }
+
+            public boolean concatAffine(LedPixel px, Affine m) {
+                m.translate(offset.x, offset.y);
+                return true;
+            }
+
+            public boolean isPixelIndependent() {
+                return true;
+            }
         };
     }
 
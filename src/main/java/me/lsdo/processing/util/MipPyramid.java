@@ -0,0 +1,142 @@
+package me.lsdo.processing.util;
+
+// Box-filtered mip pyramid of an image (packed RGB colors, row-major). Level 0 is the image itself;
+// each successive level halves the resolution, averaging 2x2 blocks of the level below. Sampling
+// from a level whose pixel size matches a region's footprint gives a cheap, well-filtered average
+// of the region.
+//
+// Usage, per frame: fill in base(width, height) -- or hand over an existing image with
+// setBase() -- then build() as many levels as needed, then sample(). The buffers are reused from
+// frame to frame.
+
+public class MipPyramid {
+
+    private int[][] levels = new int[0][];
+    private int[] widths = new int[0];
+    private int[] heights = new int[0];
+    private int numLevels;
+    // true if level 0 was handed over with setBase() rather than owned by us
+    private boolean externalBase;
+
+    // Level 0 buffer, to be filled in with the image (width * y + x)
+    public int[] base(int width, int height) {
+	if (levels.length == 0 || widths[0] != width || heights[0] != height || externalBase) {
+	    levels = new int[][] {new int[width * height]};
+	    widths = new int[] {width};
+	    heights = new int[] {height};
+	}
+	externalBase = false;
+	numLevels = 1;
+	return levels[0];
+    }
+
+    // Use 'pixels' as level 0 directly, without copying; it must stay unmodified until the pyramid
+    // has been built and sampled
+    public void setBase(int[] pixels, int width, int height) {
+	if (levels.length == 0) {
+	    levels = new int[1][];
+	    widths = new int[1];
+	    heights = new int[1];
+	}
+	if (widths[0] != width || heights[0] != height) {
+	    // invalidate the higher levels' buffers
+	    for (int L = 1; L < levels.length; L++) {
+		levels[L] = null;
+	    }
+	}
+	levels[0] = pixels;
+	widths[0] = width;
+	heights[0] = height;
+	externalBase = true;
+	numLevels = 1;
+    }
+
+    // Compute levels 1 through maxLevel from the base image (stops early at 1x1)
+    public void build(int maxLevel) {
+	if (levels.length <= maxLevel) {
+	    int[][] l = new int[maxLevel + 1][];
+	    int[] w = new int[maxLevel + 1];
+	    int[] h = new int[maxLevel + 1];
+	    System.arraycopy(levels, 0, l, 0, levels.length);
+	    System.arraycopy(widths, 0, w, 0, widths.length);
+	    System.arraycopy(heights, 0, h, 0, heights.length);
+	    levels = l;
+	    widths = w;
+	    heights = h;
+	}
+	for (numLevels = 1; numLevels <= maxLevel; numLevels++) {
+	    int L = numLevels;
+	    int sw = widths[L - 1];
+	    int sh = heights[L - 1];
+	    if (sw == 1 && sh == 1) {
+		break;
+	    }
+	    int w = (sw + 1) / 2;
+	    int h = (sh + 1) / 2;
+	    if (levels[L] == null || widths[L] != w || heights[L] != h) {
+		levels[L] = new int[w * h];
+		widths[L] = w;
+		heights[L] = h;
+	    }
+	    reduce(levels[L - 1], sw, sh, levels[L], w, h);
+	}
+    }
+
+    // 2x2 box filter; odd edges reuse the last row/column. Red and blue are summed together in one
+    // int (4 * 255 fits in the 8 spare bits between them), green in another; same rounding as
+    // OpcColor.blend().
+    private static void reduce(int[] src, int sw, int sh, int[] dst, int w, int h) {
+	for (int y = 0; y < h; y++) {
+	    int row0 = 2 * y * sw;
+	    int row1 = Math.min(2 * y + 1, sh - 1) * sw;
+	    for (int x = 0; x < w; x++) {
+		int x0 = 2 * x;
+		int x1 = Math.min(2 * x + 1, sw - 1);
+		int a = src[row0 + x0];
+		int b = src[row0 + x1];
+		int c = src[row1 + x0];
+		int d = src[row1 + x1];
+		int rb = (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff);
+		int g = (a & 0xff00) + (b & 0xff00) + (c & 0xff00) + (d & 0xff00);
+		dst[y * w + x] = OpcColor.A_MASK | ((rb >> 2) & 0xff00ff) | ((g >> 2) & 0xff00);
+	    }
+	}
+    }
+
+    public int getNumLevels() {
+	return numLevels;
+    }
+
+    // Bilinearly interpolated color at (x, y), given in level 0 pixel coordinates, from the given
+    // level (clamped to the highest level built)
+    public int sample(int level, double x, double y) {
+	level = Math.min(level, numLevels - 1);
+	int[] px = levels[level];
+	int w = widths[level];
+	int h = heights[level];
+	double scale = 1. / (1 << level);
+	// pixel centers are at half-integer coordinates
+	double fx = x * scale - .5;
+	double fy = y * scale - .5;
+	int x0 = (int)Math.floor(fx);
+	int y0 = (int)Math.floor(fy);
+	// 4-bit interpolation weights, so the four taps' weights sum to OpcColor.WEIGHT_ONE
+	int ax = (int)Math.round((fx - x0) * 16);
+	int ay = (int)Math.round((fy - y0) * 16);
+	int xa = clamp(x0, w);
+	int xb = clamp(x0 + 1, w);
+	int ya = clamp(y0, h) * w;
+	int yb = clamp(y0 + 1, h) * w;
+	long acc = 0;
+	acc = OpcColor.accumulate(acc, px[ya + xa], (16 - ax) * (16 - ay));
+	acc = OpcColor.accumulate(acc, px[ya + xb], ax * (16 - ay));
+	acc = OpcColor.accumulate(acc, px[yb + xa], (16 - ax) * ay);
+	acc = OpcColor.accumulate(acc, px[yb + xb], ax * ay);
+	return OpcColor.weightedAverage(acc);
+    }
+
+    private static int clamp(int i, int size) {
+	return Math.min(Math.max(i, 0), size - 1);
+    }
+
+}
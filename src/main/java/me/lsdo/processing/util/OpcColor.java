@@ -128,22 +128,57 @@ public class OpcColor {
     // Does a simple average (no gamma?) on the RGB of the samples.
     public static int blend(int[] samples)
     {
-        int r = 0;
-        int g = 0;
-        int b = 0;
-
+        long acc = 0;
         for (int i = 0; i < samples.length; i++) {
-            r += ((samples[i] & R_MASK)>>16);
-            g += ((samples[i] & G_MASK)>>8);
-            b += (samples[i] & B_MASK);
+            acc = accumulate(acc, samples[i]);
         }
+        return average(acc, samples.length);
+    }
 
-        r /= samples.length;
-        g /= samples.length;
-        b /= samples.length;
+    // Streaming blend, for averaging samples without collecting them into an array first. The
+    // running R/G/B sums are packed into a single long, 21 bits per channel (red in the high bits),
+    // so a blend can be carried in a local variable:
+    //
+    //   long acc = 0;
+    //   for (...) acc = OpcColor.accumulate(acc, sample);
+    //   int color = OpcColor.average(acc, numSamples);
+    //
+    // 21 bits holds the sum of up to 8224 full-intensity samples; alpha is ignored.
+    private static final int ACC_BITS = 21;
+    private static final long ACC_MASK = (1L << ACC_BITS) - 1;
+
+    public static long accumulate(long acc, int color) {
+        return acc + (((long)(color & R_MASK) << (2*ACC_BITS - 16)) |
+                      ((long)(color & G_MASK) << (ACC_BITS - 8)) |
+                      (color & B_MASK));
+    }
 
-        return getRgbColor(r, g, b);
-        //return samples[4];
+    // Simple average of the n samples accumulated into acc (same rounding as blend())
+    public static int average(long acc, int n) {
+        return getRgbColor(
+                           (int)((acc >>> (2*ACC_BITS)) & ACC_MASK) / n,
+                           (int)((acc >>> ACC_BITS) & ACC_MASK) / n,
+                           (int)(acc & ACC_MASK) / n
+			   );
+    }
+
+    // Fixed-point weighted blends. Weights are integers where WEIGHT_ONE represents 1.0; the weights
+    // of all samples accumulated into one blend must not sum to more than WEIGHT_ONE.
+    public static final int WEIGHT_ONE = 256;
+
+    public static long accumulate(long acc, int color, int weight) {
+        return acc + (((long)(((color & R_MASK) >> 16) * weight) << (2*ACC_BITS)) |
+                      ((long)(((color & G_MASK) >> 8) * weight) << ACC_BITS) |
+                      ((color & B_MASK) * weight));
+    }
+
+    // Resolve a weighted blend whose weights sum to WEIGHT_ONE (rounds to nearest)
+    public static int weightedAverage(long acc) {
+        return getRgbColor(
+                           (int)((((acc >>> (2*ACC_BITS)) & ACC_MASK) + WEIGHT_ONE/2) / WEIGHT_ONE),
+                           (int)((((acc >>> ACC_BITS) & ACC_MASK) + WEIGHT_ONE/2) / WEIGHT_ONE),
+                           (int)(((acc & ACC_MASK) + WEIGHT_ONE/2) / WEIGHT_ONE)
+			   );
     }
 
     // TODO: this is messy as hell, and has a constant fade factor.
@@ -0,0 +1,47 @@
+package me.lsdo.processing.util;
+
+// Precomputed subsample patterns for anti-aliasing: n points spread evenly over the unit disk, for
+// every n up to MAX_SAMPLES. Points are placed along a Vogel (golden-angle) spiral, which
+// stratifies the disk into n equal-area cells with roughly one point each -- unlike uniform random
+// polar offsets, which clump at the center and leave gaps near the edge. Rotate the pattern per
+// pixel to break up the regular structure between neighboring pixels.
+
+public class SamplePattern {
+
+    public static final int MAX_SAMPLES = 64;
+
+    private static final double GOLDEN_ANGLE = Math.PI * (3. - Math.sqrt(5.));
+
+    // patterns[n] holds n points as interleaved x,y pairs
+    private static final float[][] patterns = new float[MAX_SAMPLES + 1][];
+    static {
+	for (int n = 1; n <= MAX_SAMPLES; n++) {
+	    patterns[n] = makePattern(n);
+	}
+    }
+
+    private static float[] makePattern(int n) {
+	float[] p = new float[2 * n];
+	if (n == 1) {
+	    // single sample goes at the pixel center
+	    return p;
+	}
+	for (int i = 0; i < n; i++) {
+	    double r = Math.sqrt((i + .5) / n);
+	    double theta = i * GOLDEN_ANGLE;
+	    p[2*i] = (float)(r * Math.cos(theta));
+	    p[2*i + 1] = (float)(r * Math.sin(theta));
+	}
+	return p;
+    }
+
+    // Coordinates of point i of the n-point pattern (unit radius, unrotated)
+    public static float x(int n, int i) {
+	return patterns[n][2*i];
+    }
+
+    public static float y(int n, int i) {
+	return patterns[n][2*i + 1];
+    }
+
+}
@@ -0,0 +1,66 @@
+package me.lsdo.processing;
+
+import java.lang.management.*;
+import junit.framework.TestCase;
+import me.lsdo.processing.geometry.dome.Dome;
+import me.lsdo.processing.util.*;
+
+// Once warmed up, drawing a frame shouldn't allocate anything on the animation thread (garbage
+// produced every frame at 60fps turns into GC pauses, which show up as stutter on the LEDs).
+
+public class SteadyStateAllocationTest extends TestCase {
+
+    static final int WARMUP_FRAMES = 2000;
+    static final int MEASURED_FRAMES = 200;
+
+    public void testPixelMeshAnimation() {
+	PixelMeshAnimation<LedPixel> anim = new PixelMeshAnimation<LedPixel>(new Dome(2, new OPC("127.0.0.1", 17801))) {
+	    protected int drawPixel(LedPixel c, double t) {
+		return 0xff000000 | (int)(c.ordinal * t);
+	    }
+	};
+	assertNoSteadyStateAllocation(anim);
+    }
+
+    // the legacy per-sample hook, which gets its coordinates as a PVector2
+    public void testXYAnimation() {
+	XYAnimation anim = new XYAnimation(new Dome(2, new OPC("127.0.0.1", 17802)), 4) {
+	    protected int samplePoint(PVector2 p, double t) {
+		return 0xff000000 | (int)((p.x + p.y) * 1000 * t);
+	    }
+	};
+	assertNoSteadyStateAllocation(anim);
+    }
+
+    void assertNoSteadyStateAllocation(PixelMeshAnimation<?> anim) {
+	ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+	if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+	    System.err.println("per-thread allocation counters not available; skipping");
+	    return;
+	}
+	com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean)mx;
+	long thread = Thread.currentThread().getId();
+
+	int frame = 0;
+	for (; frame < WARMUP_FRAMES; frame++) {
+	    anim.draw(frame / 60.);
+	}
+	// count the frames that allocated: garbage made every frame shows up in all of them, while
+	// the odd one-off allocation (the JIT recompiling something, the input socket retrying its
+	// connection) can land in any frame and isn't what this is about
+	int allocatingFrames = 0;
+	long allocated = 0;
+	for (; frame < WARMUP_FRAMES + MEASURED_FRAMES; frame++) {
+	    long before = counters.getThreadAllocatedBytes(thread);
+	    anim.draw(frame / 60.);
+	    long bytes = counters.getThreadAllocatedBytes(thread) - before;
+	    if (bytes > 0) {
+		allocatingFrames++;
+		allocated += bytes;
+	    }
+	}
+	assertTrue(String.format("%d of %d frames allocated (%d bytes)", allocatingFrames, MEASURED_FRAMES, allocated),
+		   allocatingFrames <= MEASURED_FRAMES / 50);
+    }
+
+}